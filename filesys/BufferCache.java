@@ -0,0 +1,194 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A write-back cache of disk sectors shared by every file of a
+ * <tt>DiskFileSystem</tt>. Sectors are kept in least-recently-used order; when
+ * the cache is full the least recently used sector is dropped, and written
+ * first if it is dirty. Dirty sectors otherwise stay in memory until
+ * <tt>flush()</tt>, which writes them in sector order so that runs of
+ * adjacent sectors go to the disk as single requests.
+ *
+ * <p>
+ * A miss can read a run of consecutive sectors with one request, so that a
+ * file read sequentially costs one disk request per run rather than one per
+ * sector. Callers must serialize access to the cache.
+ */
+public class BufferCache {
+    /**
+     * Allocate a new buffer cache.
+     *
+     * @param	disk		the disk to cache.
+     * @param	capacity	the most sectors to hold at once.
+     */
+    public BufferCache(SynchDisk disk, int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	this.disk = disk;
+	this.capacity = capacity;
+    }
+
+    /**
+     * Return the cached contents of a sector, reading it if necessary. The
+     * returned array belongs to the cache; a caller that modifies it must call
+     * <tt>markDirty()</tt>.
+     *
+     * @param	sector	the sector.
+     * @return	the contents of the sector.
+     */
+    public byte[] read(int sector) {
+	return read(sector, 1);
+    }
+
+    /**
+     * Return the cached contents of a sector. On a miss, the sector and up to
+     * <i>runLength</i>-1 sectors after it that are not cached either are read
+     * with a single request.
+     *
+     * @param	sector		the sector.
+     * @param	runLength	the most sectors to read on a miss.
+     * @return	the contents of the sector.
+     */
+    public byte[] read(int sector, int runLength) {
+	Buffer buffer = buffers.get(sector);
+	if (buffer != null) {
+	    Machine.stats().numFileCacheHits++;
+	    return buffer.data;
+	}
+
+	Machine.stats().numFileCacheMisses++;
+
+	int count = 1;
+	while (count < Math.min(runLength, capacity) &&
+	       !buffers.containsKey(sector+count))
+	    count++;
+
+	byte[] data = new byte[count*sectorSize];
+	disk.readSectors(sector, count, data, 0);
+
+	// insert the requested sector last, so it is the most recently used
+	for (int i=count-1; i>=0; i--) {
+	    Buffer newBuffer = insert(sector+i);
+	    System.arraycopy(data, i*sectorSize, newBuffer.data, 0,
+			     sectorSize);
+	}
+
+	return buffers.get(sector).data;
+    }
+
+    /**
+     * Return a cached buffer for a sector that is about to be overwritten
+     * entirely, without reading it. A sector not already cached is
+     * zero-filled and marked dirty.
+     *
+     * @param	sector	the sector.
+     * @return	a buffer for the sector.
+     */
+    public byte[] overwrite(int sector) {
+	Buffer buffer = buffers.get(sector);
+	if (buffer == null) {
+	    buffer = insert(sector);
+	    buffer.dirty = true;
+	}
+
+	return buffer.data;
+    }
+
+    /**
+     * Note that a cached sector has been modified.
+     *
+     * @param	sector	a cached sector.
+     */
+    public void markDirty(int sector) {
+	Buffer buffer = buffers.get(sector);
+	Lib.assertTrue(buffer != null);
+
+	buffer.dirty = true;
+    }
+
+    /**
+     * Drop a sector without writing it, because it has been freed.
+     *
+     * @param	sector	the sector.
+     */
+    public void discard(int sector) {
+	buffers.remove(sector);
+    }
+
+    /**
+     * Write every dirty sector to the disk.
+     */
+    public void flush() {
+	int numDirty = 0;
+	int[] sectors = new int[buffers.size()];
+	for (Buffer buffer : buffers.values()) {
+	    if (buffer.dirty)
+		sectors[numDirty++] = buffer.sector;
+	}
+	Arrays.sort(sectors, 0, numDirty);
+
+	for (int start=0; start<numDirty; ) {
+	    int end = start+1;
+	    while (end < numDirty && sectors[end] == sectors[start] + end-start)
+		end++;
+
+	    byte[] data = new byte[(end-start)*sectorSize];
+	    for (int i=start; i<end; i++) {
+		Buffer buffer = buffers.get(sectors[i]);
+		System.arraycopy(buffer.data, 0, data, (i-start)*sectorSize,
+				 sectorSize);
+		buffer.dirty = false;
+	    }
+
+	    disk.writeSectors(sectors[start], end-start, data, 0);
+	    start = end;
+	}
+    }
+
+    /**
+     * Add a zero-filled buffer for a sector, evicting the least recently used
+     * buffer if the cache is full.
+     */
+    private Buffer insert(int sector) {
+	while (buffers.size() >= capacity) {
+	    Iterator<Map.Entry<Integer, Buffer>> i =
+		buffers.entrySet().iterator();
+	    Buffer victim = i.next().getValue();
+	    i.remove();
+
+	    if (victim.dirty)
+		disk.writeSector(victim.sector, victim.data, 0);
+	}
+
+	Buffer buffer = new Buffer(sector);
+	buffers.put(sector, buffer);
+	return buffer;
+    }
+
+    private static class Buffer {
+	Buffer(int sector) {
+	    this.sector = sector;
+	}
+
+	int sector;
+	byte[] data = new byte[sectorSize];
+	boolean dirty = false;
+    }
+
+    private SynchDisk disk;
+    private int capacity;
+
+    /** Cached sectors, least recently used first. */
+    private LinkedHashMap<Integer, Buffer> buffers =
+	new LinkedHashMap<Integer, Buffer>(16, 0.75f, true);
+
+    private static final int sectorSize = Disk.sectorSize;
+}
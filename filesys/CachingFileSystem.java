@@ -0,0 +1,576 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A file system that caches the contents of another file system in memory.
+ * To use it, set
+ * <tt>ThreadedKernel.fileSystem = nachos.filesys.CachingFileSystem</tt>. It
+ * caches the stub file system unless <tt>CachingFileSystem.fileSystem</tt>
+ * names another file system class.
+ *
+ * <p>
+ * Files are cached in blocks of <tt>CachingFileSystem.blockSize</tt> bytes,
+ * one page by default, and at most <tt>CachingFileSystem.capacity</tt> blocks
+ * are held at once, the least recently used being evicted first. Only a miss
+ * goes to the underlying file system and pays its delay. A miss at the block
+ * following the last one read also reads the next
+ * <tt>CachingFileSystem.readahead</tt> blocks with the same request, so a
+ * file read sequentially costs one underlying read per run of blocks.
+ *
+ * <p>
+ * The length of a file and its cached blocks outlive its last close, and the
+ * underlying file is only opened again when a block has to be read or
+ * written. Reopening a recently used executable therefore costs no
+ * underlying I/O at all. All access to the underlying files must go through
+ * this file system.
+ *
+ * <p>
+ * Writes go only to the cache. Dirty blocks are written back, in runs of
+ * adjacent blocks, when they are evicted, when the file is last closed, and
+ * every <tt>CachingFileSystem.syncInterval</tt> ticks by a sync daemon. A
+ * block that cannot be written back stays cached and dirty, and a write that
+ * finds no block it can evict fails. A single lock serializes all
+ * operations.
+ */
+public class CachingFileSystem implements FileSystem {
+    /**
+     * Allocate a new caching file system.
+     */
+    public CachingFileSystem() {
+	this(null, Config.getInteger("CachingFileSystem.capacity", 64));
+    }
+
+    /**
+     * Allocate a new caching file system in front of <i>fileSystem</i>, or
+     * of the configured file system if it is <tt>null</tt>.
+     *
+     * @param	fileSystem	the file system to cache, or <tt>null</tt>.
+     * @param	capacity	the most blocks to cache at once.
+     */
+    private CachingFileSystem(FileSystem fileSystem, int capacity) {
+	if (fileSystem == null) {
+	    String fileSystemName =
+		Config.getString("CachingFileSystem.fileSystem");
+	    if (fileSystemName != null)
+		fileSystem = (FileSystem) Lib.constructObject(fileSystemName);
+	    else
+		fileSystem = Machine.stubFileSystem();
+	}
+
+	Lib.assertTrue(fileSystem != null,
+		       "CachingFileSystem requires a file system to cache");
+
+	this.fileSystem = fileSystem;
+	this.capacity = capacity;
+
+	blockSize = Config.getInteger("CachingFileSystem.blockSize",
+				      Processor.pageSize);
+	readahead = Config.getInteger("CachingFileSystem.readahead", 4);
+	syncInterval = Config.getInteger("CachingFileSystem.syncInterval",
+					 50000);
+
+	Lib.assertTrue(blockSize > 0 && capacity > 0 && readahead >= 0);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+
+	// the daemon cannot be forked before the kernel has threads
+	if (syncInterval > 0 && !syncStarted) {
+	    syncStarted = true;
+	    new KThread(new Runnable() {
+		    public void run() { syncDaemon(); }
+		}).setName("sync daemon").fork();
+	}
+
+	CachedFile file = files.get(name);
+
+	if (file == null || truncate) {
+	    OpenFile underlying = fileSystem.open(name, truncate);
+	    if (underlying == null) {
+		lock.release();
+		return null;
+	    }
+
+	    if (file == null) {
+		file = new CachedFile(name);
+		file.length = underlying.length();
+		files.put(name, file);
+	    }
+	    else {
+		discardBlocks(file);
+		file.length = 0;
+	    }
+
+	    if (file.underlying == null)
+		file.underlying = underlying;
+	    else
+		underlying.close();
+	}
+
+	file.openCount++;
+
+	lock.release();
+	return new CachingOpenFile(file);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	CachedFile file = files.remove(name);
+	if (file != null) {
+	    // an open file's blocks stay usable until it is last closed, and
+	    // its underlying file is kept open, since a file created later
+	    // under the same name is a different file
+	    if (file.openCount > 0) {
+		openUnderlying(file);
+		file.removed = true;
+	    }
+	    else {
+		release(file);
+	    }
+	}
+
+	boolean successful = fileSystem.remove(name);
+
+	lock.release();
+	return successful;
+    }
+
+    /**
+     * Write back the dirty blocks of every file.
+     */
+    public void sync() {
+	lock.acquire();
+
+	for (CachedFile file : files.values())
+	    writeBack(file);
+
+	lock.release();
+    }
+
+    private void syncDaemon() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(syncInterval);
+	    Lib.debug(dbgCache, "sync daemon writing back dirty blocks");
+	    sync();
+	}
+    }
+
+    /**
+     * Copy bytes out of a file's blocks, reading any that are not cached.
+     */
+    private int read(CachedFile file, int pos, byte[] buf, int offset,
+		     int length) {
+	length = Math.min(length, file.length - pos);
+	if (length <= 0)
+	    return 0;
+
+	int lastBlock = (pos+length-1) / blockSize;
+	int done = 0;
+	while (done < length) {
+	    int index = (pos+done) / blockSize;
+	    int blockOffset = (pos+done) % blockSize;
+	    int amount = Math.min(blockSize - blockOffset, length - done);
+
+	    Block block = getBlock(file, index, lastBlock);
+	    if (block == null)
+		return (done == 0) ? -1 : done;
+
+	    System.arraycopy(block.data, blockOffset, buf, offset+done, amount);
+	    done += amount;
+	}
+
+	file.nextBlock = lastBlock+1;
+	return length;
+    }
+
+    /**
+     * Copy bytes into a file's blocks, reading only blocks that are partly
+     * overwritten and hold existing data.
+     */
+    private int write(CachedFile file, int pos, byte[] buf, int offset,
+		      int length) {
+	int done = 0;
+	while (done < length) {
+	    int index = (pos+done) / blockSize;
+	    int blockOffset = (pos+done) % blockSize;
+	    int amount = Math.min(blockSize - blockOffset, length - done);
+
+	    Block block = file.blocks.get(index);
+	    if (block != null)
+		touch(block);
+	    else if (amount == blockSize || index*blockSize >= file.length)
+		block = insert(file, index);
+	    else
+		block = getBlock(file, index, index);
+
+	    if (block == null)
+		break;
+
+	    System.arraycopy(buf, offset+done, block.data, blockOffset, amount);
+	    block.dirty = true;
+	    done += amount;
+
+	    // a block evicted by the rest of this write must be written back
+	    file.length = Math.max(file.length, pos+done);
+	}
+
+	if (done == 0 && length > 0)
+	    return -1;
+
+	return done;
+    }
+
+    /**
+     * Return a block of a file, reading it on a miss. A miss also reads the
+     * following uncached blocks up to <i>lastBlock</i>, and the readahead
+     * window beyond it if the file is being read sequentially.
+     *
+     * @return	the block, or <tt>null</tt> if it could not be read.
+     */
+    private Block getBlock(CachedFile file, int index, int lastBlock) {
+	Block block = file.blocks.get(index);
+	if (block != null) {
+	    Machine.stats().numFileCacheHits++;
+	    touch(block);
+	    return block;
+	}
+
+	Machine.stats().numFileCacheMisses++;
+
+	if (index == file.nextBlock)
+	    lastBlock += readahead;
+	lastBlock = Math.min(lastBlock, (file.length-1) / blockSize);
+	lastBlock = Math.min(lastBlock, index + capacity-1);
+
+	int count = 1;
+	while (index+count <= lastBlock &&
+	       !file.blocks.containsKey(index+count))
+	    count++;
+
+	if (!openUnderlying(file))
+	    return null;
+
+	// bytes beyond the end of the underlying file read as zero
+	byte[] data = new byte[count*blockSize];
+	if (file.underlying.read(index*blockSize, data, 0, data.length) < 0)
+	    return null;
+
+	if (count > 1) {
+	    Lib.debug(dbgCache, "read " + file.name + " blocks " + index
+		      + " through " + (index+count-1));
+	}
+
+	// insert the requested block last, so it is the most recently used
+	for (int i=count-1; i>=0; i--) {
+	    block = insert(file, index+i);
+	    if (block == null)
+		return null;
+
+	    System.arraycopy(data, i*blockSize, block.data, 0, blockSize);
+	}
+
+	return block;
+    }
+
+    /**
+     * Write a file's dirty blocks to the underlying file, one request per
+     * run of adjacent blocks. A block stays dirty unless the request holding
+     * it was written in full. The dirty blocks of a removed file whose
+     * underlying file could not be kept open are dropped.
+     *
+     * @return	<tt>true</tt> if no dirty blocks remain.
+     */
+    private boolean writeBack(CachedFile file) {
+	if (file.removed && file.underlying == null) {
+	    for (Block block : file.blocks.values())
+		block.dirty = false;
+	    return true;
+	}
+
+	int numDirty = 0;
+	int[] indices = new int[file.blocks.size()];
+	for (Block block : file.blocks.values()) {
+	    if (block.dirty)
+		indices[numDirty++] = block.index;
+	}
+
+	if (numDirty == 0)
+	    return true;
+
+	if (!openUnderlying(file)) {
+	    Lib.debug(dbgCache, "unable to write back " + file.name);
+	    return false;
+	}
+
+	Arrays.sort(indices, 0, numDirty);
+
+	boolean successful = true;
+
+	for (int start=0; start<numDirty; ) {
+	    int end = start+1;
+	    while (end < numDirty && indices[end] == indices[start] + end-start)
+		end++;
+
+	    int pos = indices[start]*blockSize;
+	    int length = Math.min((end-start)*blockSize, file.length - pos);
+	    if (length > 0) {
+		byte[] data = new byte[(end-start)*blockSize];
+		for (int i=start; i<end; i++) {
+		    Block block = file.blocks.get(indices[i]);
+		    System.arraycopy(block.data, 0, data, (i-start)*blockSize,
+				     blockSize);
+		}
+
+		if (file.underlying.write(pos, data, 0, length) != length) {
+		    Lib.debug(dbgCache, "unable to write back " + file.name
+			      + " blocks " + indices[start] + " through "
+			      + indices[end-1]);
+		    successful = false;
+		    start = end;
+		    continue;
+		}
+	    }
+
+	    for (int i=start; i<end; i++)
+		file.blocks.get(indices[i]).dirty = false;
+
+	    start = end;
+	}
+
+	return successful;
+    }
+
+    /**
+     * Open a file's underlying file if it is not open. A removed file is
+     * never opened again by name.
+     */
+    private boolean openUnderlying(CachedFile file) {
+	if (file.underlying == null && !file.removed)
+	    file.underlying = fileSystem.open(file.name, false);
+
+	return file.underlying != null;
+    }
+
+    /**
+     * Add a zero-filled block to the cache, evicting the least recently used
+     * block if the cache is full. A dirty block that cannot be written back
+     * is never evicted.
+     *
+     * @return	the new block, or <tt>null</tt> if every cached block is
+     *		dirty and could not be written back.
+     */
+    private Block insert(CachedFile file, int index) {
+	HashSet<CachedFile> failed = new HashSet<CachedFile>();
+
+	Iterator<Block> i = lru.keySet().iterator();
+	while (lru.size() >= capacity) {
+	    if (!i.hasNext())
+		return null;
+
+	    Block victim = i.next();
+	    if (victim.dirty) {
+		if (failed.contains(victim.file))
+		    continue;
+
+		if (!writeBack(victim.file) && victim.dirty) {
+		    failed.add(victim.file);
+		    continue;
+		}
+	    }
+
+	    i.remove();
+	    victim.file.blocks.remove(victim.index);
+	}
+
+	Block block = new Block(file, index);
+	file.blocks.put(index, block);
+	lru.put(block, block);
+	return block;
+    }
+
+    private void touch(Block block) {
+	lru.get(block);
+    }
+
+    private void discardBlocks(CachedFile file) {
+	for (Block block : file.blocks.values())
+	    lru.remove(block);
+	file.blocks.clear();
+    }
+
+    /**
+     * Drop a file that is no longer in the file system.
+     */
+    private void release(CachedFile file) {
+	discardBlocks(file);
+
+	if (file.underlying != null) {
+	    file.underlying.close();
+	    file.underlying = null;
+	}
+    }
+
+    /**
+     * Test that the blocks of a file removed while open are never written to
+     * a file created later under the same name, using a two-block cache in
+     * front of <tt>Machine.stubFileSystem()</tt>.
+     */
+    public static void selfTest() {
+	CachingFileSystem cache =
+	    new CachingFileSystem(Machine.stubFileSystem(), 2);
+	// no sync daemon, so only evictions write back
+	cache.syncInterval = 0;
+
+	String name = "cache.tmp", other = "cache2.tmp";
+	byte[] oldData = "old".getBytes(), newData = "new".getBytes();
+	byte[] block = new byte[cache.blockSize];
+	byte[] buf = new byte[3];
+
+	// cached and closed, so reopening it does not open the underlying file
+	OpenFile file = cache.open(name, true);
+	Lib.assertTrue(file.write(newData, 0, 3) == 3);
+	file.close();
+
+	file = cache.open(name, false);
+	Lib.assertTrue(file.write(oldData, 0, 3) == 3);
+	Lib.assertTrue(cache.remove(name));
+
+	OpenFile recreated = cache.open(name, true);
+	Lib.assertTrue(recreated.write(newData, 0, 3) == 3);
+	recreated.close();
+
+	// evict the removed file's dirty block
+	OpenFile filler = cache.open(other, true);
+	Lib.assertTrue(filler.write(block, 0, block.length) == block.length);
+	Lib.assertTrue(filler.write(block, 0, block.length) == block.length);
+	Lib.assertTrue(file.read(0, buf, 0, 3) == 3);
+	Lib.assertTrue(new String(buf).equals("old"));
+
+	OpenFile underlying = Machine.stubFileSystem().open(name, false);
+	Lib.assertTrue(underlying.read(0, buf, 0, 3) == 3);
+	Lib.assertTrue(new String(buf).equals("new"));
+	underlying.close();
+
+	file.close();
+	filler.close();
+	Lib.assertTrue(cache.remove(name) && cache.remove(other));
+    }
+
+    private class CachedFile {
+	CachedFile(String name) {
+	    this.name = name;
+	}
+
+	String name;
+	int length;
+	/** The underlying file, or <tt>null</tt> if it is not open. */
+	OpenFile underlying = null;
+	int openCount = 0;
+	boolean removed = false;
+
+	/** The block after the last one read, to detect sequential reads. */
+	int nextBlock = 0;
+	HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+    }
+
+    private class Block {
+	Block(CachedFile file, int index) {
+	    this.file = file;
+	    this.index = index;
+	    data = new byte[blockSize];
+	}
+
+	CachedFile file;
+	int index;
+	byte[] data;
+	boolean dirty = false;
+    }
+
+    private class CachingOpenFile extends OpenFileWithPosition {
+	CachingOpenFile(CachedFile file) {
+	    super(CachingFileSystem.this, file.name);
+
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+	    int amount = CachingFileSystem.this.read(file, pos, buf, offset,
+						     length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+	    int amount = CachingFileSystem.this.write(file, pos, buf, offset,
+						      length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    return (file == null) ? -1 : file.length;
+	}
+
+	public void close() {
+	    if (file == null)
+		return;
+
+	    lock.acquire();
+
+	    // the cached blocks stay behind, but not the underlying file
+	    if (--file.openCount == 0) {
+		if (file.removed) {
+		    release(file);
+		}
+		else {
+		    writeBack(file);
+		    if (file.underlying != null) {
+			file.underlying.close();
+			file.underlying = null;
+		    }
+		}
+	    }
+
+	    lock.release();
+	    file = null;
+	}
+
+	private CachedFile file;
+    }
+
+    private FileSystem fileSystem;
+    private int blockSize, capacity, readahead, syncInterval;
+    private boolean syncStarted = false;
+
+    /** Every file opened so far that has not been removed, by name. */
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+    /** Every cached block, least recently used first. */
+    private LinkedHashMap<Block, Block> lru =
+	new LinkedHashMap<Block, Block>(16, 0.75f, true);
+
+    private Lock lock = new Lock();
+
+    private static final char dbgCache = 'f';
+}
@@ -0,0 +1,149 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+/**
+ * A directory stored as a hash table in the data of a directory inode. The
+ * table has a fixed number of entries, each naming a file and giving its
+ * inode number. A name hashes to an entry and is found by probing forward
+ * from there, so a lookup usually touches a single sector no matter how many
+ * files the directory holds.
+ *
+ * <p>
+ * Each entry stores one more than the inode number, so that a zeroed table
+ * is empty. A removed entry is marked with -1 rather than cleared, so that
+ * probes for names stored beyond it still find them, and is reused by the
+ * next file created. Callers must hold the file system's lock.
+ */
+class Directory {
+    /**
+     * Allocate a directory backed by an inode.
+     *
+     * @param	inode	the directory inode.
+     */
+    Directory(Inode inode) {
+	this.inode = inode;
+	numEntries = inode.length / entrySize;
+
+	Lib.assertTrue(numEntries > 0);
+    }
+
+    /**
+     * Return the inode number of a file.
+     *
+     * @param	name	the name of the file.
+     * @return	the file's inode number, or -1 if there is no such file.
+     */
+    int lookup(String name) {
+	int entry = find(name);
+	return (entry == -1) ? -1 : getInumber(entry);
+    }
+
+    /**
+     * Add a file to this directory.
+     *
+     * @param	name	the name of the file, which must not be present.
+     * @param	inumber	the file's inode number.
+     * @return	<tt>true</tt> if the file was added, or <tt>false</tt> if the
+     *		directory is full.
+     */
+    boolean add(String name, int inumber) {
+	int start = hash(name);
+	for (int i=0; i<numEntries; i++) {
+	    int entry = (start + i) % numEntries;
+	    int stored = readStored(entry);
+	    if (stored == empty || stored == removed) {
+		writeEntry(entry, name, inumber+1);
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Remove a file from this directory.
+     *
+     * @param	name	the name of the file.
+     * @return	the file's inode number, or -1 if there is no such file.
+     */
+    int remove(String name) {
+	int entry = find(name);
+	if (entry == -1)
+	    return -1;
+
+	int inumber = getInumber(entry);
+	writeEntry(entry, "", removed);
+	return inumber;
+    }
+
+    /**
+     * Return the entry holding a name, or -1 if it is not present.
+     */
+    private int find(String name) {
+	int start = hash(name);
+	byte[] buf = new byte[entrySize];
+
+	for (int i=0; i<numEntries; i++) {
+	    int entry = (start + i) % numEntries;
+	    inode.read(entry*entrySize, buf, 0, entrySize);
+
+	    int stored = Lib.bytesToInt(buf, maxNameLength);
+	    if (stored == empty)
+		return -1;
+
+	    if (stored != removed &&
+		Lib.bytesToString(buf, 0, maxNameLength).equals(name))
+		return entry;
+	}
+
+	return -1;
+    }
+
+    private int getInumber(int entry) {
+	return readStored(entry) - 1;
+    }
+
+    private int readStored(int entry) {
+	byte[] buf = new byte[4];
+	inode.read(entry*entrySize + maxNameLength, buf, 0, 4);
+	return Lib.bytesToInt(buf, 0);
+    }
+
+    private void writeEntry(int entry, String name, int stored) {
+	byte[] buf = new byte[entrySize];
+	byte[] nameBytes = name.getBytes();
+	System.arraycopy(nameBytes, 0, buf, 0, nameBytes.length);
+	Lib.bytesFromInt(buf, maxNameLength, stored);
+
+	inode.write(entry*entrySize, buf, 0, entrySize);
+    }
+
+    private int hash(String name) {
+	return (name.hashCode() & 0x7FFFFFFF) % numEntries;
+    }
+
+    /**
+     * Test whether a name can be stored in a directory.
+     *
+     * @param	name	a file name.
+     * @return	<tt>true</tt> if the name is not empty and fits in an entry.
+     */
+    static boolean isValidName(String name) {
+	return name.length() > 0 && name.getBytes().length <= maxNameLength &&
+	    name.indexOf('\0') == -1;
+    }
+
+    private Inode inode;
+    private int numEntries;
+
+    /** The longest file name, in bytes. */
+    static final int maxNameLength = 28;
+    /** The size of an entry: the name followed by the stored number. */
+    static final int entrySize = maxNameLength + 4;
+
+    private static final int empty = 0;
+    private static final int removed = -1;
+}
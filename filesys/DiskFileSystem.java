@@ -0,0 +1,446 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A file system stored on the machine's simulated disk. To use it, set
+ * <tt>Machine.disk = true</tt> and
+ * <tt>ThreadedKernel.fileSystem = nachos.filesys.DiskFileSystem</tt>.
+ *
+ * <p>
+ * The disk is laid out as a superblock in sector 0, a bitmap of used
+ * sectors, an inode table of <tt>DiskFileSystem.numInodes</tt> inodes, and
+ * the data sectors. Inode 0 is a single hashed directory of
+ * <tt>DiskFileSystem.directorySize</tt> entries holding every file. Files
+ * are allocated in extents of consecutive sectors.
+ *
+ * <p>
+ * Every sector is read and written through a shared <tt>BufferCache</tt> of
+ * <tt>DiskFileSystem.cacheSize</tt> sectors, so repeated small reads of the
+ * same data cost no disk I/O. Modified sectors are written back when they
+ * are evicted, and all of them are written back whenever a file is closed
+ * or removed.
+ *
+ * <p>
+ * The disk is mounted on first use. A disk that does not hold a file system
+ * of the right size is formatted, and the files listed in
+ * <tt>DiskFileSystem.importFiles</tt> are copied onto it from the stub file
+ * system, so that programs can be run from it. A single lock serializes all
+ * operations.
+ */
+public class DiskFileSystem implements FileSystem {
+    /**
+     * Allocate a new disk file system.
+     */
+    public DiskFileSystem() {
+	Lib.assertTrue(ThreadedKernel.synchDisk != null,
+		       "DiskFileSystem requires Machine.disk = true");
+
+	disk = ThreadedKernel.synchDisk;
+	numSectors = disk.getDisk().getNumSectors();
+	cache = new BufferCache(disk,
+				Config.getInteger("DiskFileSystem.cacheSize",
+						  64));
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	if (!Directory.isValidName(name))
+	    return null;
+
+	lock.acquire();
+	mount();
+
+	Inode inode;
+	int inumber = directory.lookup(name);
+	if (inumber == -1) {
+	    inode = truncate ? create(name) : null;
+	}
+	else {
+	    inode = getInode(inumber);
+	    if (truncate && inode.length > 0)
+		inode.truncate();
+	}
+
+	if (inode != null) {
+	    inode.openCount++;
+	    openInodes.put(inode.inumber, inode);
+	}
+
+	lock.release();
+	return (inode == null) ? null : new DiskOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	if (!Directory.isValidName(name))
+	    return false;
+
+	lock.acquire();
+	mount();
+
+	int inumber = directory.remove(name);
+	if (inumber != -1) {
+	    Inode inode = openInodes.get(inumber);
+
+	    // an open file lives on until it is last closed
+	    if (inode != null)
+		inode.removed = true;
+	    else
+		freeInode(getInode(inumber));
+
+	    cache.flush();
+	}
+
+	lock.release();
+	return inumber != -1;
+    }
+
+    /**
+     * Read the file system from the disk, formatting the disk if it does not
+     * hold one. Does nothing if the disk is already mounted.
+     */
+    private void mount() {
+	if (directory != null)
+	    return;
+
+	byte[] superblock = cache.read(0);
+	if (Lib.bytesToInt(superblock, 0) != magic ||
+	    Lib.bytesToInt(superblock, 4) != numSectors) {
+	    format();
+	    return;
+	}
+
+	numInodes = Lib.bytesToInt(superblock, 8);
+	computeLayout();
+
+	for (int sector=0; sector<numSectors; sector++) {
+	    byte[] data = cache.read(bitmapStart + sector/bitsPerSector);
+	    int bit = sector % bitsPerSector;
+	    if ((data[bit/8] & (1 << (bit%8))) != 0)
+		usedSectors.set(sector);
+	}
+
+	for (int inumber=0; inumber<numInodes; inumber++) {
+	    byte[] data = cache.read(getInodeSector(inumber));
+	    if (Lib.bytesToInt(data, getInodeOffset(inumber)) !=
+		Inode.typeFree)
+		usedInodes.set(inumber);
+	}
+
+	openDirectory();
+
+	Lib.debug(dbgFS, "mounted disk file system: "
+		  + usedSectors.cardinality() + " of " + numSectors
+		  + " sectors used");
+    }
+
+    private void format() {
+	Lib.debug(dbgFS, "formatting disk file system");
+
+	numInodes = Config.getInteger("DiskFileSystem.numInodes", 64);
+	computeLayout();
+	Lib.assertTrue(dataStart < numSectors, "disk too small");
+
+	for (int sector=0; sector<dataStart; sector++) {
+	    Arrays.fill(cache.overwrite(sector), (byte) 0);
+	    cache.markDirty(sector);
+	}
+
+	byte[] superblock = cache.read(0);
+	Lib.bytesFromInt(superblock, 0, magic);
+	Lib.bytesFromInt(superblock, 4, numSectors);
+	Lib.bytesFromInt(superblock, 8, numInodes);
+
+	setUsed(0, dataStart, true);
+
+	// the directory is a fixed-size table, zeroed to mark it empty
+	int directorySize = Config.getInteger("DiskFileSystem.directorySize",
+					      64);
+	Inode root = getInode(allocateInode());
+	Lib.assertTrue(root.inumber == rootInode);
+	root.type = Inode.typeDirectory;
+	byte[] entries = new byte[directorySize*Directory.entrySize];
+	Lib.assertTrue(root.write(0, entries, 0, entries.length) ==
+		       entries.length, "disk too small");
+
+	openDirectory();
+	importFiles();
+	cache.flush();
+    }
+
+    /**
+     * Copy the files named in <tt>DiskFileSystem.importFiles</tt> from the
+     * stub file system. The names are separated by commas, and the list must
+     * be quoted if it contains spaces.
+     */
+    private void importFiles() {
+	String names = Config.getString("DiskFileSystem.importFiles", "");
+	FileSystem stub = Machine.stubFileSystem();
+
+	for (String name : names.split(",")) {
+	    name = name.trim();
+	    if (name.length() == 0 || stub == null)
+		continue;
+
+	    OpenFile source = stub.open(name, false);
+	    Lib.assertTrue(source != null, "unable to import " + name);
+
+	    byte[] contents = new byte[source.length()];
+	    Lib.assertTrue(source.read(0, contents, 0, contents.length) ==
+			   contents.length, "unable to import " + name);
+	    source.close();
+
+	    Inode inode = create(name);
+	    Lib.assertTrue(inode != null &&
+			   inode.write(0, contents, 0, contents.length) ==
+			   contents.length, "no room to import " + name);
+
+	    Lib.debug(dbgFS, "imported " + name + " (" + contents.length
+		      + " bytes)");
+	}
+    }
+
+    private void computeLayout() {
+	bitmapStart = 1;
+	int numBitmapSectors = (numSectors + bitsPerSector-1) / bitsPerSector;
+	inodeStart = bitmapStart + numBitmapSectors;
+	dataStart = inodeStart + (numInodes + inodesPerSector-1) /
+	    inodesPerSector;
+    }
+
+    private void openDirectory() {
+	Inode root = getInode(rootInode);
+	root.openCount++;
+	openInodes.put(rootInode, root);
+
+	directory = new Directory(root);
+    }
+
+    /**
+     * Create an empty file and add it to the directory.
+     *
+     * @return	the file's inode, or <tt>null</tt> if there was no room.
+     */
+    private Inode create(String name) {
+	int inumber = allocateInode();
+	if (inumber == -1)
+	    return null;
+
+	Inode inode = getInode(inumber);
+	inode.type = Inode.typeFile;
+	inode.store();
+
+	if (!directory.add(name, inumber)) {
+	    freeInode(inode);
+	    return null;
+	}
+
+	return inode;
+    }
+
+    /**
+     * Return the inode with the given number, sharing the in-memory copy of
+     * an open file.
+     */
+    private Inode getInode(int inumber) {
+	Inode inode = openInodes.get(inumber);
+	if (inode == null) {
+	    inode = new Inode(this, inumber);
+	    inode.load();
+	}
+
+	return inode;
+    }
+
+    private int allocateInode() {
+	int inumber = usedInodes.nextClearBit(0);
+	if (inumber >= numInodes)
+	    return -1;
+
+	usedInodes.set(inumber);
+	return inumber;
+    }
+
+    private void freeInode(Inode inode) {
+	inode.truncate();
+	inode.type = Inode.typeFree;
+	inode.store();
+
+	usedInodes.clear(inode.inumber);
+    }
+
+    /**
+     * Return the sector of the inode table holding an inode.
+     */
+    int getInodeSector(int inumber) {
+	return inodeStart + inumber / inodesPerSector;
+    }
+
+    /**
+     * Return the offset of an inode within its sector.
+     */
+    int getInodeOffset(int inumber) {
+	return (inumber % inodesPerSector) * Inode.size;
+    }
+
+    /**
+     * Allocate up to <i>count</i> free sectors starting at <i>sector</i>,
+     * stopping at the first sector in use.
+     *
+     * @return	the number of sectors allocated.
+     */
+    int allocateAt(int sector, int count) {
+	int end = sector;
+	while (end < numSectors && end < sector+count && !usedSectors.get(end))
+	    end++;
+
+	setUsed(sector, end, true);
+	return end - sector;
+    }
+
+    /**
+     * Allocate a run of free sectors: the first run of <i>count</i> sectors
+     * if there is one, or else the longest run shorter than that.
+     *
+     * @return	the first sector and length of the run, or <tt>null</tt> if
+     *		no run of at least <i>minCount</i> sectors is free.
+     */
+    int[] allocateRun(int count, int minCount) {
+	int bestStart = -1, bestLength = 0;
+
+	for (int start = usedSectors.nextClearBit(dataStart);
+	     start < numSectors; ) {
+	    int end = usedSectors.nextSetBit(start);
+	    if (end == -1 || end > numSectors)
+		end = numSectors;
+
+	    if (end - start >= count) {
+		bestStart = start;
+		bestLength = count;
+		break;
+	    }
+	    if (end - start > bestLength) {
+		bestStart = start;
+		bestLength = end - start;
+	    }
+
+	    start = usedSectors.nextClearBit(end);
+	}
+
+	if (bestLength < minCount)
+	    return null;
+
+	setUsed(bestStart, bestStart+bestLength, true);
+	return new int[] { bestStart, bestLength };
+    }
+
+    /**
+     * Free a run of sectors.
+     */
+    void freeSectors(int start, int count) {
+	setUsed(start, start+count, false);
+
+	for (int sector=start; sector<start+count; sector++)
+	    cache.discard(sector);
+    }
+
+    /**
+     * Mark sectors <i>start</i> through <i>end</i>-1 used or free, in memory
+     * and in the bitmap on disk.
+     */
+    private void setUsed(int start, int end, boolean used) {
+	for (int sector=start; sector<end; sector++) {
+	    usedSectors.set(sector, used);
+
+	    int bitmapSector = bitmapStart + sector/bitsPerSector;
+	    int bit = sector % bitsPerSector;
+	    byte[] data = cache.read(bitmapSector);
+	    if (used)
+		data[bit/8] |= (byte) (1 << (bit%8));
+	    else
+		data[bit/8] &= (byte) ~(1 << (bit%8));
+	    cache.markDirty(bitmapSector);
+	}
+    }
+
+    private class DiskOpenFile extends OpenFileWithPosition {
+	DiskOpenFile(String name, Inode inode) {
+	    super(DiskFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+	    int amount = inode.read(pos, buf, offset, length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+	    int amount = inode.write(pos, buf, offset, length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    return (inode == null) ? -1 : inode.length;
+	}
+
+	public void close() {
+	    if (inode == null)
+		return;
+
+	    lock.acquire();
+
+	    if (--inode.openCount == 0) {
+		openInodes.remove(inode.inumber);
+		if (inode.removed)
+		    freeInode(inode);
+	    }
+	    cache.flush();
+
+	    lock.release();
+	    inode = null;
+	}
+
+	private Inode inode;
+    }
+
+    private SynchDisk disk;
+    private int numSectors, numInodes;
+    private int bitmapStart, inodeStart, dataStart;
+
+    /** The cache through which every sector is read and written. */
+    BufferCache cache;
+    private Directory directory = null;
+
+    /** In-memory copies of the inodes of open files, by inode number. */
+    private HashMap<Integer, Inode> openInodes = new HashMap<Integer, Inode>();
+    private BitSet usedSectors = new BitSet();
+    private BitSet usedInodes = new BitSet();
+
+    private Lock lock = new Lock();
+
+    private static final int magic = 0x4e464653;
+    private static final int rootInode = 0;
+
+    private static final int bitsPerSector = Disk.sectorSize * 8;
+    private static final int inodesPerSector = Disk.sectorSize / Inode.size;
+
+    private static final char dbgFS = 'f';
+}
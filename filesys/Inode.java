@@ -0,0 +1,311 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.Arrays;
+
+/**
+ * The on-disk description of a file: its length and the extents holding its
+ * data. An extent is a run of consecutive sectors, so a file written
+ * sequentially onto a quiet disk usually occupies a single extent and can be
+ * read with few requests.
+ *
+ * <p>
+ * Each inode takes <tt>size</tt> bytes of the inode table and holds up to
+ * <tt>numDirectExtents</tt> extents itself; further extents go in an
+ * indirect sector. When a file grows, its last extent is extended in place
+ * if the following sectors are free, and a new extent is allocated
+ * otherwise. Callers must hold the file system's lock.
+ */
+class Inode {
+    /**
+     * Allocate an in-memory inode.
+     *
+     * @param	fs		the file system the inode belongs to.
+     * @param	inumber		the inode's index in the inode table.
+     */
+    Inode(DiskFileSystem fs, int inumber) {
+	this.fs = fs;
+	this.inumber = inumber;
+    }
+
+    /**
+     * Read this inode from the inode table.
+     */
+    void load() {
+	byte[] data = fs.cache.read(fs.getInodeSector(inumber));
+	int offset = fs.getInodeOffset(inumber);
+
+	type = Lib.bytesToInt(data, offset+0);
+	length = Lib.bytesToInt(data, offset+4);
+	numExtents = Lib.bytesToInt(data, offset+8);
+	indirectSector = Lib.bytesToInt(data, offset+12);
+
+	for (int i=0; i<Math.min(numExtents, numDirectExtents); i++) {
+	    extentStart[i] = Lib.bytesToInt(data, offset+16+i*8);
+	    extentLength[i] = Lib.bytesToInt(data, offset+20+i*8);
+	}
+
+	if (numExtents > numDirectExtents) {
+	    byte[] indirect = fs.cache.read(indirectSector);
+	    for (int i=numDirectExtents; i<numExtents; i++) {
+		int j = i - numDirectExtents;
+		extentStart[i] = Lib.bytesToInt(indirect, j*8);
+		extentLength[i] = Lib.bytesToInt(indirect, j*8+4);
+	    }
+	}
+    }
+
+    /**
+     * Write this inode back to the inode table.
+     */
+    void store() {
+	int sector = fs.getInodeSector(inumber);
+	byte[] data = fs.cache.read(sector);
+	int offset = fs.getInodeOffset(inumber);
+
+	Lib.bytesFromInt(data, offset+0, type);
+	Lib.bytesFromInt(data, offset+4, length);
+	Lib.bytesFromInt(data, offset+8, numExtents);
+	Lib.bytesFromInt(data, offset+12, indirectSector);
+
+	for (int i=0; i<numDirectExtents; i++) {
+	    boolean used = i < numExtents;
+	    Lib.bytesFromInt(data, offset+16+i*8, used ? extentStart[i] : 0);
+	    Lib.bytesFromInt(data, offset+20+i*8, used ? extentLength[i] : 0);
+	}
+	fs.cache.markDirty(sector);
+
+	if (numExtents > numDirectExtents) {
+	    byte[] indirect = fs.cache.read(indirectSector);
+	    for (int i=numDirectExtents; i<numExtents; i++) {
+		int j = i - numDirectExtents;
+		Lib.bytesFromInt(indirect, j*8, extentStart[i]);
+		Lib.bytesFromInt(indirect, j*8+4, extentLength[i]);
+	    }
+	    fs.cache.markDirty(indirectSector);
+	}
+    }
+
+    /**
+     * Read bytes from this file. Reads stop at the end of the file.
+     *
+     * @param	pos	the first byte of the file to read.
+     * @param	buf	the buffer to read into.
+     * @param	offset	the offset in <i>buf</i> of the first byte.
+     * @param	count	the number of bytes to read.
+     * @return	the number of bytes read.
+     */
+    int read(int pos, byte[] buf, int offset, int count) {
+	count = Math.min(count, length - pos);
+	if (count <= 0)
+	    return 0;
+
+	int lastSector = (pos+count-1) / sectorSize;
+	int done = 0;
+	while (done < count) {
+	    int fileSector = (pos+done) / sectorSize;
+	    int sectorOffset = (pos+done) % sectorSize;
+	    int amount = Math.min(sectorSize - sectorOffset, count - done);
+
+	    // a miss brings in the rest of the request from the same extent
+	    int run = Math.min(getRunLength(fileSector),
+			       lastSector - fileSector + 1);
+	    byte[] data = fs.cache.read(getSector(fileSector), run);
+	    System.arraycopy(data, sectorOffset, buf, offset+done, amount);
+
+	    done += amount;
+	}
+
+	return count;
+    }
+
+    /**
+     * Write bytes to this file, growing it if necessary. Any gap between the
+     * old end of the file and <i>pos</i> reads as zero.
+     *
+     * @param	pos	the first byte of the file to write.
+     * @param	buf	the buffer to write from.
+     * @param	offset	the offset in <i>buf</i> of the first byte.
+     * @param	count	the number of bytes to write.
+     * @return	the number of bytes written, which is less than <i>count</i>
+     *		if the disk is full.
+     */
+    int write(int pos, byte[] buf, int offset, int count) {
+	if (count <= 0)
+	    return 0;
+
+	int oldSectors = getNumSectors();
+	int newSectors = (pos+count + sectorSize-1) / sectorSize;
+	if (newSectors > oldSectors)
+	    newSectors = allocate(newSectors);
+
+	count = Math.min(count, newSectors*sectorSize - pos);
+	if (count <= 0)
+	    return 0;
+
+	// newly allocated sectors start as zero, whether written or not
+	for (int i=oldSectors; i<newSectors; i++) {
+	    int sector = getSector(i);
+	    Arrays.fill(fs.cache.overwrite(sector), (byte) 0);
+	    fs.cache.markDirty(sector);
+	}
+
+	int done = 0;
+	while (done < count) {
+	    int fileSector = (pos+done) / sectorSize;
+	    int sectorOffset = (pos+done) % sectorSize;
+	    int amount = Math.min(sectorSize - sectorOffset, count - done);
+
+	    int sector = getSector(fileSector);
+	    byte[] data = (amount == sectorSize) ? fs.cache.overwrite(sector)
+		: fs.cache.read(sector);
+	    System.arraycopy(buf, offset+done, data, sectorOffset, amount);
+	    fs.cache.markDirty(sector);
+
+	    done += amount;
+	}
+
+	if (pos+count > length || newSectors != oldSectors) {
+	    length = Math.max(length, pos+count);
+	    store();
+	}
+
+	return count;
+    }
+
+    /**
+     * Free every sector of this file and set its length to zero.
+     */
+    void truncate() {
+	for (int i=0; i<numExtents; i++)
+	    fs.freeSectors(extentStart[i], extentLength[i]);
+	if (numExtents > numDirectExtents)
+	    fs.freeSectors(indirectSector, 1);
+
+	numExtents = 0;
+	indirectSector = -1;
+	length = 0;
+	store();
+    }
+
+    /**
+     * Return the number of sectors allocated to this file.
+     */
+    int getNumSectors() {
+	int count = 0;
+	for (int i=0; i<numExtents; i++)
+	    count += extentLength[i];
+	return count;
+    }
+
+    /**
+     * Return the disk sector holding a sector of this file.
+     */
+    private int getSector(int fileSector) {
+	for (int i=0; i<numExtents; i++) {
+	    if (fileSector < extentLength[i])
+		return extentStart[i] + fileSector;
+	    fileSector -= extentLength[i];
+	}
+
+	Lib.assertNotReached("sector past end of file");
+	return -1;
+    }
+
+    /**
+     * Return how many sectors of this file, starting at <i>fileSector</i>,
+     * lie consecutively in the same extent.
+     */
+    private int getRunLength(int fileSector) {
+	for (int i=0; i<numExtents; i++) {
+	    if (fileSector < extentLength[i])
+		return extentLength[i] - fileSector;
+	    fileSector -= extentLength[i];
+	}
+
+	return 0;
+    }
+
+    /**
+     * Grow this file to <i>numSectors</i> sectors, or as close to it as free
+     * space and the extent table allow.
+     *
+     * @return	the number of sectors now allocated.
+     */
+    private int allocate(int numSectors) {
+	int have = getNumSectors();
+
+	while (have < numSectors) {
+	    int want = numSectors - have;
+
+	    // extend the last extent in place if the next sectors are free
+	    if (numExtents > 0) {
+		int last = numExtents-1;
+		int got = fs.allocateAt(extentStart[last] + extentLength[last],
+					want);
+		if (got > 0) {
+		    extentLength[last] += got;
+		    have += got;
+		    continue;
+		}
+	    }
+
+	    if (numExtents == maxExtents)
+		break;
+
+	    if (numExtents == numDirectExtents) {
+		int[] indirect = fs.allocateRun(1, 1);
+		if (indirect == null)
+		    break;
+		indirectSector = indirect[0];
+	    }
+
+	    int[] run = fs.allocateRun(want, 1);
+	    if (run == null) {
+		if (numExtents == numDirectExtents)
+		    fs.freeSectors(indirectSector, 1);
+		break;
+	    }
+
+	    extentStart[numExtents] = run[0];
+	    extentLength[numExtents] = run[1];
+	    numExtents++;
+	    have += run[1];
+	}
+
+	return have;
+    }
+
+    private DiskFileSystem fs;
+
+    /** This inode's index in the inode table. */
+    int inumber;
+    /** <tt>typeFree</tt>, <tt>typeFile</tt> or <tt>typeDirectory</tt>. */
+    int type = typeFree;
+    /** The length of the file in bytes. */
+    int length = 0;
+
+    private int numExtents = 0;
+    private int indirectSector = -1;
+    private int[] extentStart = new int[maxExtents];
+    private int[] extentLength = new int[maxExtents];
+
+    /** The number of <tt>OpenFile</tt>s open on this inode. */
+    int openCount = 0;
+    /** Set when the file is removed while open, to free it on last close. */
+    boolean removed = false;
+
+    static final int typeFree = 0;
+    static final int typeFile = 1;
+    static final int typeDirectory = 2;
+
+    /** The number of bytes an inode occupies in the inode table. */
+    static final int size = 64;
+
+    private static final int sectorSize = Disk.sectorSize;
+    private static final int numDirectExtents = 6;
+    private static final int maxExtents = numDirectExtents + sectorSize/8;
+}
@@ -0,0 +1,298 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A simulated disk, stored in a file on the host file system. The disk is an
+ * array of fixed-size sectors, grouped into tracks, and transfers runs of
+ * consecutive sectors one request at a time.
+ *
+ * <p>
+ * Requests are asynchronous: <tt>readRequest()</tt> and
+ * <tt>writeRequest()</tt> return immediately, and the interrupt handler is
+ * called when the transfer completes. Only one request may be outstanding at
+ * a time, so queueing and scheduling requests is up to the kernel.
+ *
+ * <p>
+ * The time a request takes is modelled on a real drive:
+ * <ul>
+ * <li>The arm seeks from its current track to the track of the first sector.
+ * A seek of one track takes a tenth of <tt>Stats.SeekTime</tt>, and longer
+ * seeks grow with the square root of the distance, since the arm spends
+ * most of a short seek accelerating, up to <tt>Stats.SeekTime</tt> for a
+ * seek across the whole disk.
+ * <li>The platter spins continuously, once every <tt>Stats.RotationTime</tt>
+ * ticks, so once the arm has settled the request waits for the first sector
+ * to come around under the head.
+ * <li>Each sector then takes <tt>Stats.RotationTime</tt> divided by the
+ * number of sectors per track to pass under the head. A run that crosses
+ * into the next track pays a one-track seek and waits for the rotation
+ * again.
+ * </ul>
+ *
+ * <p>
+ * <tt>nachos.conf</tt> sets the geometry with <tt>Disk.numTracks</tt> and
+ * <tt>Disk.sectorsPerTrack</tt>, and names the image file with
+ * <tt>Disk.imageFile</tt>. An image that does not exist is created, and
+ * sectors that have never been written read as zero.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public Disk(Privilege privilege) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 32);
+	sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+	Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0);
+
+	sectorTime = Math.max(Stats.RotationTime / sectorsPerTrack, 1);
+	rotationTime = sectorTime * sectorsPerTrack;
+	minSeekTime = Math.max(Stats.SeekTime / 10, 1);
+
+	final File f = new File(Config.getString("Disk.imageFile", "DISK"));
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openImage(f); }
+	    });
+	Lib.assertTrue(image != null, "unable to open disk image");
+
+	completionInterrupt = new Runnable() {
+		public void run() { completionInterrupt(); }
+	    };
+    }
+
+    private void openImage(File f) {
+	try {
+	    image = new RandomAccessFile(f, "rw");
+	}
+	catch (IOException e) {
+	}
+    }
+
+    /**
+     * Set this disk's interrupt handler. The handler is called each time a
+     * request completes, after which another request may be started.
+     *
+     * @param	interruptHandler	the callback to call when a request
+     *					completes.
+     */
+    public void setInterruptHandler(Runnable interruptHandler) {
+	this.interruptHandler = interruptHandler;
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return sectorSize;
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the capacity of the disk in sectors.
+     */
+    public int getNumSectors() {
+	return numTracks * sectorsPerTrack;
+    }
+
+    /**
+     * Return the number of sectors in each track.
+     *
+     * @return	the number of sectors per track.
+     */
+    public int getSectorsPerTrack() {
+	return sectorsPerTrack;
+    }
+
+    /**
+     * Return the number of tracks on this disk.
+     *
+     * @return	the number of tracks.
+     */
+    public int getNumTracks() {
+	return numTracks;
+    }
+
+    /**
+     * Return the track under the head. While a request is in progress, this
+     * is the track the request will leave the head on.
+     *
+     * @return	the current track.
+     */
+    public int getHeadTrack() {
+	return headTrack;
+    }
+
+    /**
+     * Test whether a request is in progress.
+     *
+     * @return	<tt>true</tt> if the disk cannot accept a request.
+     */
+    public boolean isBusy() {
+	return busy;
+    }
+
+    /**
+     * Return how long it would take to seek to a track from the one under
+     * the head.
+     *
+     * @param	track	the destination track.
+     * @return	the seek time in ticks.
+     */
+    public int getSeekTime(int track) {
+	return seekTime(Math.abs(track - headTrack));
+    }
+
+    /**
+     * Start reading a run of consecutive sectors. When the interrupt handler
+     * is called, <i>data</i> holds the contents of the sectors.
+     *
+     * @param	sector		the first sector to read.
+     * @param	numSectors	the number of sectors to read.
+     * @param	data		the array to read into.
+     * @param	offset		the offset in <i>data</i> of the first byte.
+     */
+    public void readRequest(int sector, int numSectors, byte[] data,
+			    int offset) {
+	startRequest(false, sector, numSectors, data, offset);
+    }
+
+    /**
+     * Start writing a run of consecutive sectors. The contents of
+     * <i>data</i> are captured when the request is made, so the caller may
+     * reuse the array at once; they reach the disk when the interrupt
+     * handler is called.
+     *
+     * @param	sector		the first sector to write.
+     * @param	numSectors	the number of sectors to write.
+     * @param	data		the array to write from.
+     * @param	offset		the offset in <i>data</i> of the first byte.
+     */
+    public void writeRequest(int sector, int numSectors, byte[] data,
+			     int offset) {
+	byte[] copy = new byte[numSectors*sectorSize];
+	System.arraycopy(data, offset, copy, 0, copy.length);
+
+	startRequest(true, sector, numSectors, copy, 0);
+    }
+
+    private void startRequest(boolean write, int sector, int numSectors,
+			      byte[] data, int offset) {
+	Lib.assertTrue(!busy, "disk request while busy");
+	Lib.assertTrue(numSectors > 0 && sector >= 0 &&
+		       sector + numSectors <= getNumSectors());
+	Lib.assertTrue(offset >= 0 &&
+		       offset + numSectors*sectorSize <= data.length);
+
+	busy = true;
+	requestWrite = write;
+	requestSector = sector;
+	requestCount = numSectors;
+	requestData = data;
+	requestOffset = offset;
+
+	long now = privilege.stats.totalTicks;
+	long time = now;
+	for (int i=0; i<numSectors; i++) {
+	    int track = (sector+i) / sectorsPerTrack;
+	    int position = (sector+i) % sectorsPerTrack;
+
+	    // consecutive sectors on one track follow with no rotational wait
+	    if (i == 0 || position == 0) {
+		time += seekTime(Math.abs(track - headTrack));
+		headTrack = track;
+
+		long angle = time % rotationTime;
+		time += (position*sectorTime - angle + rotationTime)
+		    % rotationTime;
+	    }
+
+	    time += sectorTime;
+	}
+
+	Lib.debug(dbgDisk, (write ? "write " : "read ") + numSectors
+		  + " sectors at " + sector + ", " + (time-now) + " ticks");
+
+	privilege.interrupt.schedule(time-now, "disk", completionInterrupt);
+    }
+
+    private int seekTime(int distance) {
+	if (distance == 0)
+	    return 0;
+
+	double fraction = Math.sqrt((double) (distance-1) /
+				    Math.max(numTracks-1, 1));
+	return minSeekTime + (int) ((Stats.SeekTime - minSeekTime) * fraction);
+    }
+
+    private void completionInterrupt() {
+	Lib.assertTrue(busy);
+
+	int length = requestCount*sectorSize;
+	long pos = (long) requestSector*sectorSize;
+
+	try {
+	    if (requestWrite) {
+		image.seek(pos);
+		image.write(requestData, requestOffset, length);
+		privilege.stats.numDiskWrites += requestCount;
+	    }
+	    else {
+		// sectors past the end of the image have never been written
+		int amount = 0;
+		if (pos < image.length()) {
+		    image.seek(pos);
+		    amount = Math.max(0, image.read(requestData, requestOffset,
+						    length));
+		}
+		for (int i=amount; i<length; i++)
+		    requestData[requestOffset+i] = 0;
+		privilege.stats.numDiskReads += requestCount;
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk image I/O failed");
+	}
+
+	busy = false;
+	requestData = null;
+
+	if (interruptHandler != null)
+	    interruptHandler.run();
+    }
+
+    private Privilege privilege;
+    private RandomAccessFile image = null;
+
+    private Runnable completionInterrupt;
+    private Runnable interruptHandler = null;
+
+    private int numTracks, sectorsPerTrack;
+    private int sectorTime, rotationTime, minSeekTime;
+    private int headTrack = 0;
+
+    private boolean busy = false;
+    private boolean requestWrite;
+    private int requestSector, requestCount, requestOffset;
+    private byte[] requestData;
+
+    /** The number of bytes in a sector. */
+    public static final int sectorSize = 128;
+
+    private static final char dbgDisk = 'd';
+}
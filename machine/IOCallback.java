@@ -0,0 +1,16 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * An object to be notified when an asynchronous file operation started with
+ * <tt>OpenFile.readAsync()</tt> or <tt>OpenFile.writeAsync()</tt> completes.
+ */
+public interface IOCallback {
+    /**
+     * Called, with interrupts disabled, when the operation completes.
+     *
+     * @param	result	the number of bytes read or written, or -1 on failure.
+     */
+    public void ioDone(int result);
+}
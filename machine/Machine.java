@@ -100,6 +100,17 @@ public final class Machine {
 	terminate();
     }
 
+    /**
+     * Return the statistics object for this machine. The kernel may record
+     * its own counters (for example, paging activity) there so that they are
+     * printed with the hardware statistics when Nachos halts.
+     *
+     * @return	the machine statistics.
+     */
+    public static Stats stats() {
+	return stats;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -185,6 +196,9 @@ public final class Machine {
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege);
+
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
     }
@@ -336,6 +350,13 @@ public final class Machine {
      * @return	the stub file system, or <tt>null</tt> if it is not present.
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
+
+    /**
+     * Return the disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
     
     /**
      * Return the network link.
@@ -357,6 +378,7 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
 
@@ -77,6 +77,55 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Start reading this file at the specified position, and return without
+     * waiting for the read to finish. <i>callback</i> is notified of the
+     * number of bytes read once they are in <i>buf</i>. Several operations
+     * may be in progress on a file at once, and may complete in any order.
+     *
+     * <p>
+     * This implementation reads synchronously and then notifies
+     * <i>callback</i>. File systems that can overlap operations override it.
+     *
+     * @param	pos		the offset in the file to start reading at.
+     * @param	buf		the buffer to store the bytes in.
+     * @param	offset		the offset in the buffer to start storing bytes.
+     * @param	length		the number of bytes to read.
+     * @param	callback	the object to notify when the read completes.
+     */
+    public void readAsync(int pos, byte[] buf, int offset, int length,
+			  IOCallback callback) {
+	complete(callback, read(pos, buf, offset, length));
+    }
+
+    /**
+     * Start writing this file at the specified position, and return without
+     * waiting for the write to finish. The bytes are taken from <i>buf</i>
+     * before this method returns, so the caller may reuse it at once.
+     * <i>callback</i> is notified of the number of bytes written once the
+     * write completes.
+     *
+     * <p>
+     * This implementation writes synchronously and then notifies
+     * <i>callback</i>. File systems that can overlap operations override it.
+     *
+     * @param	pos		the offset in the file to start writing at.
+     * @param	buf		the buffer to get the bytes from.
+     * @param	offset		the offset in the buffer to start getting.
+     * @param	length		the number of bytes to write.
+     * @param	callback	the object to notify when the write completes.
+     */
+    public void writeAsync(int pos, byte[] buf, int offset, int length,
+			   IOCallback callback) {
+	complete(callback, write(pos, buf, offset, length));
+    }
+
+    private void complete(IOCallback callback, int result) {
+	boolean intStatus = Machine.interrupt().disable();
+	callback.ioDone(result);
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Get the length of this file.
      *
@@ -23,10 +23,29 @@ public final class Stats {
 			   + ", user " + userTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
+	System.out.println("Disk queue: requests " + numDiskRequests
+			   + ", merged " + numDiskRequestsMerged
+			   + ", average seek "
+			   + diskSeekDistance / Math.max(numDiskRequests, 1)
+			   + " tracks, average wait "
+			   + diskQueueTicks / Math.max(numDiskRequests
+						       + numDiskRequestsMerged,
+						       1)
+			   + " ticks");
+	System.out.println("File cache: hits " + numFileCacheHits
+			   + ", misses " + numFileCacheMisses
+			   + ", handle reopens " + numHandleReopens);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	System.out.println("Swap: pages in " + numSwapIns
+			   + ", pages out " + numSwapOuts
+			   + ", writes " + numSwapWrites
+			   + ", compressed " + numSwapCompressed);
+	System.out.println("Pageout: wakeups " + numPageoutWakeups
+			   + ", pages cleaned " + numPagesCleaned
+			   + ", dirty evictions " + numDirtyEvictions);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -49,6 +68,20 @@ public final class Stats {
     public int numDiskReads = 0;
     /** The total number of sectors Nachos has written to the simulated disk.*/
     public int numDiskWrites = 0;
+    /** The number of transfers the kernel has started on the disk. */
+    public int numDiskRequests = 0;
+    /** The number of requests merged into another's transfer. */
+    public int numDiskRequestsMerged = 0;
+    /** The total number of tracks the head has moved to start transfers. */
+    public long diskSeekDistance = 0;
+    /** The total time requests have spent waiting for the disk. */
+    public long diskQueueTicks = 0;
+    /** The number of file system block reads found in a cache. */
+    public int numFileCacheHits = 0;
+    /** The number of file system block reads that had to go to storage. */
+    public int numFileCacheMisses = 0;
+    /** The number of times a file handle closed to save handles reopened. */
+    public int numHandleReopens = 0;
     /** The total number of characters Nachos has read from the console. */
     public int numConsoleReads = 0;
     /** The total number of characters Nachos has written to the console. */
@@ -57,6 +90,20 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of pages the kernel has read back from swap. */
+    public int numSwapIns = 0;
+    /** The total number of pages the kernel has written to swap. */
+    public int numSwapOuts = 0;
+    /** The total number of write requests used to write those pages. */
+    public int numSwapWrites = 0;
+    /** The number of those pages kept compressed in memory instead. */
+    public int numSwapCompressed = 0;
+    /** The number of times the pageout daemon was woken. */
+    public int numPageoutWakeups = 0;
+    /** The number of dirty pages the pageout daemon wrote ahead. */
+    public int numPagesCleaned = 0;
+    /** The number of evictions that had to write their victim to swap. */
+    public int numDirtyEvictions = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -8,10 +8,23 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * If <tt>StubFileSystem.mapped</tt> is <tt>true</tt>, open files are mapped
+ * into host memory, so that reads and writes are memory copies rather than
+ * host system calls. Either way, each operation costs the same simulated
+ * time.
+ *
+ * <p>
+ * A synchronous read or write blocks the calling thread for that time. An
+ * asynchronous one returns at once and completes in an interrupt that long
+ * afterwards, so that any number of them in progress overlap.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,6 +37,8 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	mapped = Config.getBoolean("StubFileSystem.mapped", false);
     }
     
     public OpenFile open(String name, boolean truncate) {
@@ -33,7 +48,10 @@ public class StubFileSystem implements FileSystem {
 	delay();
 	    
 	try {
-	    return new StubOpenFile(name, truncate);
+	    if (mapped)
+		return new MappedStubOpenFile(name, truncate);
+	    else
+		return new StubOpenFile(name, truncate);
 	}
 	catch (IOException e) {
 	    return null;
@@ -66,15 +84,100 @@ public class StubFileSystem implements FileSystem {
 
     private void delay() {
 	long time = Machine.timer().getTime();
-	int amount = 1000;
+	int amount = delayTime;
 	ThreadedKernel.alarm.waitUntil(amount);
 	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
     }
 
-    private class StubOpenFile extends OpenFileWithPosition {
+    /**
+     * An open host file. Subclasses transfer the bytes; this class charges
+     * the simulated time, and completes asynchronous operations.
+     */
+    private abstract class HostOpenFile extends OpenFileWithPosition {
+	HostOpenFile(String name) {
+	    super(StubFileSystem.this, name);
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!checkTransfer(pos, buf, offset, length))
+		return -1;
+
+	    delay();
+	    return hostRead(pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!checkTransfer(pos, buf, offset, length))
+		return -1;
+
+	    delay();
+	    return hostWrite(pos, buf, offset, length);
+	}
+
+	public void readAsync(final int pos, final byte[] buf,
+			      final int offset, final int length,
+			      final IOCallback callback) {
+	    if (!checkTransfer(pos, buf, offset, length)) {
+		fail(callback);
+		return;
+	    }
+
+	    privilege.interrupt.schedule(delayTime, "file", new Runnable() {
+		public void run() {
+		    callback.ioDone(open ? hostRead(pos, buf, offset, length)
+				    : -1);
+		}
+	    });
+	}
+
+	public void writeAsync(final int pos, byte[] buf, int offset,
+			       final int length, final IOCallback callback) {
+	    if (!checkTransfer(pos, buf, offset, length)) {
+		fail(callback);
+		return;
+	    }
+
+	    final byte[] data = new byte[length];
+	    System.arraycopy(buf, offset, data, 0, length);
+
+	    privilege.interrupt.schedule(delayTime, "file", new Runnable() {
+		public void run() {
+		    callback.ioDone(open ? hostWrite(pos, data, 0, length)
+				    : -1);
+		}
+	    });
+	}
+
+	/**
+	 * Test whether a transfer can be started: the file must be open, and
+	 * the position and the range of the buffer valid.
+	 */
+	private boolean checkTransfer(int pos, byte[] buf, int offset,
+				      int length) {
+	    return open && pos >= 0 && offset >= 0 && length >= 0 &&
+		length <= buf.length-offset;
+	}
+
+	/**
+	 * Complete an asynchronous operation that could not be started.
+	 */
+	private void fail(IOCallback callback) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    callback.ioDone(-1);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	abstract int hostRead(int pos, byte[] buf, int offset, int length);
+
+	abstract int hostWrite(int pos, byte[] buf, int offset, int length);
+
+	boolean open = false;
+    }
+
+    private class StubOpenFile extends HostOpenFile {
 	StubOpenFile(final String name, final boolean truncate)
 	    throws IOException {
-	    super(StubFileSystem.this, name);
+	    super(name);
 
 	    final File f = new File(directory, name);
 
@@ -106,13 +209,8 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
-	public int read(int pos, byte[] buf, int offset, int length) {
-	    if (!open)
-		return -1;
-	    
+	int hostRead(int pos, byte[] buf, int offset, int length) {
 	    try {
-		delay();
-
 		file.seek(pos);
 		return Math.max(0, file.read(buf, offset, length));
 	    }
@@ -121,13 +219,8 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 	
-	public int write(int pos, byte[] buf, int offset, int length) {
-	    if (!open)
-		return -1;
-	    
+	int hostWrite(int pos, byte[] buf, int offset, int length) {
 	    try {
-		delay();
-		
 		file.seek(pos);
 		file.write(buf, offset, length);
 		return length;
@@ -160,14 +253,199 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	private RandomAccessFile file = null;
-	private boolean open = false;
+    }
+
+    /**
+     * An open file whose contents are mapped into host memory. The mapping
+     * covers the whole file. Another open file may extend or truncate the
+     * file, so the mapping is checked against the file's length before every
+     * transfer, and mapped again if they differ.
+     */
+    private class MappedStubOpenFile extends HostOpenFile {
+	MappedStubOpenFile(final String name, final boolean truncate)
+	    throws IOException {
+	    super(name);
+
+	    final File f = new File(directory, name);
+
+	    if (openCount == maxOpenFiles)
+		throw new IOException();
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { getMappedFile(f, truncate); }
+	    });
+
+	    if (buffer == null)
+		throw new IOException();
+
+	    open = true;
+	    openCount++;
+	}
+
+	private void getMappedFile(File f, boolean truncate) {
+	    try {
+		if (!truncate && !f.exists())
+		    return;
+
+		file = new RandomAccessFile(f, "rw");
+
+		if (truncate)
+		    file.setLength(0);
+
+		map((int) file.length());
+	    }
+	    catch (IOException e) {
+		unmapFile();
+	    }
+	}
+
+	/**
+	 * Map the first <i>size</i> bytes of the file, extending the file if
+	 * it is shorter. Mapping a file needs privilege.
+	 */
+	private void map(final int size) {
+	    privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			buffer = file.getChannel().map(
+			    FileChannel.MapMode.READ_WRITE, 0, size);
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+	}
+
+	private void unmapFile() {
+	    try {
+		if (buffer != null)
+		    buffer.force();
+
+		if (file != null) {
+		    file.close();
+		    file = null;
+		}
+	    }
+	    catch (IOException e) {
+	    }
+	}
+
+	/**
+	 * Map the whole file again if its length has changed. Touching a
+	 * mapping past the end of a truncated file crashes the host, so this
+	 * fails if the new mapping cannot be made.
+	 */
+	private boolean remap() {
+	    int size = length();
+	    if (size < 0)
+		return false;
+
+	    if (size != buffer.capacity())
+		map(size);
+
+	    return size == buffer.capacity();
+	}
+
+	int hostRead(int pos, byte[] buf, int offset, int length) {
+	    if (!remap())
+		return -1;
+
+	    int amount = Math.max(0, Math.min(length, buffer.capacity()-pos));
+	    if (amount > 0) {
+		buffer.position(pos);
+		buffer.get(buf, offset, amount);
+	    }
+
+	    return amount;
+	}
+
+	int hostWrite(int pos, byte[] buf, int offset, int length) {
+	    if (!remap())
+		return -1;
+
+	    if (pos+length > buffer.capacity()) {
+		map(pos+length);
+		if (pos+length > buffer.capacity())
+		    return -1;
+	    }
+
+	    buffer.position(pos);
+	    buffer.put(buf, offset, length);
+	    return length;
+	}
+
+	public int length() {
+	    if (!open)
+		return -1;
+
+	    try {
+		return (int) file.length();
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public void close() {
+	    if (open) {
+		open = false;
+		openCount--;
+	    }
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { unmapFile(); }
+	    });
+	}
+
+	private RandomAccessFile file = null;
+	private MappedByteBuffer buffer = null;
+    }
+
+    /**
+     * Test that a mapped open file stays usable while another open file
+     * truncates and extends the same host file. Uses
+     * <tt>Machine.stubFileSystem()</tt>, whether or not it maps files.
+     */
+    public static void selfTest() {
+	StubFileSystem fs = (StubFileSystem) Machine.stubFileSystem();
+	String name = "mapped.tmp";
+	byte[] data = "mapped file".getBytes();
+	byte[] buf = new byte[data.length];
+
+	try {
+	    OpenFile first = fs.new MappedStubOpenFile(name, true);
+	    Lib.assertTrue(first.write(0, data, 0, data.length) ==
+			   data.length);
+
+	    // truncated through the second file, then extended again
+	    OpenFile second = fs.new MappedStubOpenFile(name, true);
+	    Lib.assertTrue(first.length() == 0);
+	    Lib.assertTrue(first.read(0, buf, 0, buf.length) == 0);
+	    Lib.assertTrue(first.write(4, data, 0, 6) == 6);
+
+	    Lib.assertTrue(second.length() == 10);
+	    Lib.assertTrue(second.write(10, data, 6, 5) == 5);
+
+	    Lib.assertTrue(first.read(4, buf, 0, buf.length) == buf.length);
+	    Lib.assertTrue(new String(buf).equals("mapped file"));
+
+	    first.close();
+	    second.close();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not open " + name);
+	}
+
+	Lib.assertTrue(fs.remove(name));
     }
 
     private int openCount = 0;
     private static final int maxOpenFiles = 16;
+    private static final int delayTime = 1000;
     
     private Privilege privilege;
     private File directory;
+    private boolean mapped;
 
     private static boolean checkName(String name) {
 	char[] chars = name.toCharArray();
@@ -67,3 +67,8 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(ioring_setup, syscallRingSetup)
+	SYSCALLSTUB(ioring_enter, syscallRingEnter)
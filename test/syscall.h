@@ -25,6 +25,11 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallReadv		14
+#define syscallWritev		15
+#define syscallRingSetup	16
+#define syscallRingEnter	17
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -257,6 +262,105 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Create a new process running a copy of the current one: the same program,
+ * a copy of its memory, and the same open files, each with its own file
+ * position. Both processes continue from the return of fork(). Under virtual
+ * memory, pages are shared until one of the processes writes to them.
+ *
+ * Returns the child's process ID to the parent and 0 to the child, or -1 in
+ * the parent if the child could not be created.
+ */
+int fork();
+
+/**
+ * A buffer for readv() and writev().
+ */
+struct iovec {
+    void *base;
+    int length;
+};
+
+/**
+ * Like read(), but read into each of the count buffers described by iov in
+ * turn, stopping early if a buffer cannot be filled. At most 16 buffers may
+ * be given. Returns the total number of bytes read, or -1 on error.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int count);
+
+/**
+ * Like write(), but write each of the count buffers described by iov in
+ * turn. At most 16 buffers may be given. Returns the total number of bytes
+ * written, or -1 on error.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int count);
+
+/* Operations that can be submitted to an I/O ring. */
+#define ringOpRead		0
+#define ringOpWrite		1
+#define ringOpReadv		2
+#define ringOpWritev		3
+
+/**
+ * A submission queue entry: the operation, and its arguments as they would
+ * be passed to read(), write(), readv() or writev(). userData is copied to
+ * the operation's completion.
+ */
+struct ioring_sqe {
+    int opcode;
+    int fileDescriptor;
+    void *buffer;
+    int count;
+    int userData;
+};
+
+/**
+ * A completion queue entry: the userData of the operation and the value the
+ * corresponding system call would have returned.
+ */
+struct ioring_cqe {
+    int userData;
+    int result;
+};
+
+/**
+ * The header of an I/O ring, followed in memory by the submission queue and
+ * then the completion queue, each an array of the number of entries given
+ * to ioring_setup(). The counters increase forever; entry i of a queue is at
+ * index i modulo the number of entries. The process fills submission entries
+ * and advances sqTail, and consumes completion entries and advances cqHead.
+ * The kernel advances sqHead and cqTail.
+ */
+struct ioring {
+    int sqHead;
+    int sqTail;
+    int cqHead;
+    int cqTail;
+};
+
+/**
+ * Register an I/O ring at ring, which must be page-aligned and writable.
+ * entries must be a power of two, and the ring, with both queues, must fit
+ * in one page. The whole ring, header and queues, is set to zero. A ring of 0
+ * unregisters the current ring. A child created by fork() inherits the ring.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ioring_setup(struct ioring *ring, int entries);
+
+/**
+ * Perform up to count operations from the submission queue of the
+ * registered ring, in order, posting a completion for each. Stops early if
+ * the submission queue empties or the completion queue fills. All of the
+ * operations are handled in a single trap into the kernel.
+ *
+ * Returns the number of operations performed, or -1 if no ring is
+ * registered, its header is corrupt, or a completion could not be posted.
+ * An operation whose completion was lost is still consumed, and is not
+ * performed again.
+ */
+int ioring_enter(int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
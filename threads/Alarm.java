@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 import java.util.Comparator;
+import java.util.LinkedList;
 import java.util.PriorityQueue;
 
 /**
@@ -11,6 +12,7 @@ import java.util.PriorityQueue;
 public class Alarm {
 
     private PriorityQueue<ThreadTime> sleepThreads = new PriorityQueue<ThreadTime>();
+    private LinkedList<Runnable> timerHandlers = new LinkedList<Runnable>();
 
     private class ThreadTime implements Comparable<ThreadTime> {
 
@@ -45,9 +47,10 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread that
-     * should be run.
+     * periodically (approximately every 500 clock ticks). Runs the handlers
+     * added with <tt>addTimerHandler()</tt>, then causes the current thread to
+     * yield, forcing a context switch if there is another thread that should
+     * be run.
      */
     public void timerInterrupt() {
         long currentTime = Machine.timer().getTime(); //Store timer
@@ -55,16 +58,33 @@ public class Alarm {
         ThreadTime tThread = sleepThreads.peek(); //Check first threads time
 
         while (tThread != null && currentTime > tThread.wakeTime) {
-            System.out.println("Waking up the thread.");
+            Lib.debug(dbgAlarm, "Waking up the thread.");
             tThread.thread.ready();
             sleepThreads.poll();
             tThread = sleepThreads.peek();
         }
 
+        for (Runnable handler : timerHandlers) {
+            handler.run();
+        }
+
         Machine.interrupt().restore(intStatus);
         KThread.currentThread().yield();
     }
 
+    /**
+     * Add a handler to be run on every timer interrupt, before the current
+     * thread yields. Handlers run with interrupts disabled and in interrupt
+     * context, so they must not block.
+     *
+     * @param	handler	the handler to run.
+     */
+    public void addTimerHandler(Runnable handler) {
+        boolean intStatus = Machine.interrupt().disable();
+        timerHandlers.add(handler);
+        Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
      * in the timer interrupt handler. The thread must be woken up (placed in
@@ -110,7 +130,7 @@ public class Alarm {
     }
 
     private static void test1() {
-        Alarm testTime = new Alarm();
+        Alarm testTime = ThreadedKernel.alarm;
         KThread thread = new KThread();
         thread.setTarget(new Runnable() {
             public void run() {
@@ -127,7 +147,7 @@ public class Alarm {
     }
 
     private static void test2() {
-        Alarm testTime = new Alarm();
+        Alarm testTime = ThreadedKernel.alarm;
         KThread thread = new KThread();
         thread.setTarget(new Runnable() {
             public void run() {
@@ -144,7 +164,7 @@ public class Alarm {
     }
 
     private static void test3() {
-        Alarm testAlarm = new Alarm();
+        Alarm testAlarm = ThreadedKernel.alarm;
         KThread thread = new KThread();
         thread.setTarget(new Runnable() {
             public void run() {
@@ -159,4 +179,5 @@ public class Alarm {
         thread.join();
     }
 
+    private static final char dbgAlarm = 't';
 }
@@ -0,0 +1,37 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.List;
+
+/**
+ * The circular elevator algorithm. The head serves requests in increasing
+ * sector order from its current position, and when none remain ahead of it
+ * returns to the lowest waiting request and sweeps up again. Every request
+ * waits at most one sweep, and sequential streams are served in order.
+ */
+public class CLOOKDiskScheduler extends DiskScheduler {
+    /**
+     * Allocate a new C-LOOK disk scheduler.
+     */
+    public CLOOKDiskScheduler() {
+    }
+
+    public SynchDisk.Request selectNext(List<SynchDisk.Request> queue,
+					int headSector) {
+	SynchDisk.Request ahead = null, lowest = null;
+
+	for (SynchDisk.Request request : queue) {
+	    int sector = request.getSector();
+
+	    if (sector >= headSector &&
+		(ahead == null || sector < ahead.getSector()))
+		ahead = request;
+
+	    if (lowest == null || sector < lowest.getSector())
+		lowest = request;
+	}
+
+	return (ahead != null) ? ahead : lowest;
+    }
+}
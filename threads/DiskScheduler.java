@@ -0,0 +1,60 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.List;
+
+/**
+ * Chooses which queued disk request to serve next. <tt>SynchDisk</tt>
+ * constructs the scheduler named by <tt>SynchDisk.scheduler</tt> and consults
+ * it each time the disk becomes idle with requests waiting.
+ *
+ * <p>
+ * Schedulers only choose; <tt>SynchDisk</tt> removes the chosen request from
+ * the queue, merges adjacent requests into it, and overrides the choice when
+ * a request has waited past its deadline.
+ *
+ * @see	nachos.threads.SynchDisk
+ */
+public abstract class DiskScheduler {
+    /**
+     * Allocate a new disk scheduler.
+     */
+    public DiskScheduler() {
+    }
+
+    /**
+     * Attach this scheduler to the disk it schedules. Called once, before any
+     * other method.
+     *
+     * @param	disk	the disk.
+     */
+    public void initialize(Disk disk) {
+	this.disk = disk;
+    }
+
+    /**
+     * Choose the next request to serve.
+     *
+     * @param	queue		the waiting requests, oldest first. Never
+     *				empty.
+     * @param	headSector	the sector following the last one transferred,
+     *				which the head is nearest.
+     * @return	a request from <i>queue</i>.
+     */
+    public abstract SynchDisk.Request selectNext(List<SynchDisk.Request> queue,
+						 int headSector);
+
+    /**
+     * Return the track holding a sector.
+     *
+     * @param	sector	a sector of the disk.
+     * @return	the sector's track.
+     */
+    protected int getTrack(int sector) {
+	return sector / disk.getSectorsPerTrack();
+    }
+
+    /** The disk this scheduler chooses for. */
+    protected Disk disk;
+}
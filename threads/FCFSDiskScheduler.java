@@ -0,0 +1,21 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.List;
+
+/**
+ * Serves disk requests in the order they were made.
+ */
+public class FCFSDiskScheduler extends DiskScheduler {
+    /**
+     * Allocate a new first-come first-served disk scheduler.
+     */
+    public FCFSDiskScheduler() {
+    }
+
+    public SynchDisk.Request selectNext(List<SynchDisk.Request> queue,
+					int headSector) {
+	return queue.get(0);
+    }
+}
@@ -0,0 +1,55 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * An asynchronous file operation that a thread can wait for. Pass one to
+ * <tt>OpenFile.readAsync()</tt> or <tt>OpenFile.writeAsync()</tt>, go on
+ * with other work, and call <tt>waitUntilDone()</tt> when the result is
+ * needed. A thread that starts several operations before waiting for any of
+ * them pays for their latencies only once, if the file system overlaps them.
+ */
+public class PendingIO implements IOCallback {
+    /**
+     * Allocate a new <tt>PendingIO</tt>.
+     */
+    public PendingIO() {
+    }
+
+    /**
+     * Record the result of the operation and wake the waiting thread.
+     * Called by the file system when the operation completes.
+     *
+     * @param	result	the number of bytes read or written, or -1 on failure.
+     */
+    public void ioDone(int result) {
+	Lib.assertTrue(!done);
+
+	this.result = result;
+	done = true;
+	completed.V();
+    }
+
+    /**
+     * Wait for the operation to complete. May be called only once.
+     *
+     * @return	the number of bytes read or written, or -1 on failure.
+     */
+    public int waitUntilDone() {
+	completed.P();
+	return result;
+    }
+
+    /**
+     * Test whether the operation has completed.
+     *
+     * @return	<tt>true</tt> if the operation has completed.
+     */
+    public boolean isDone() {
+	return done;
+    }
+
+    private boolean done = false;
+    private int result;
+    private Semaphore completed = new Semaphore(0);
+}
@@ -0,0 +1,54 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.List;
+
+/**
+ * The elevator algorithm. The head sweeps across the disk in one direction,
+ * serving requests in sector order as it reaches them, and reverses when no
+ * request remains ahead of it. Since the simulated arm only moves to serve a
+ * request, a sweep turns at the last request rather than at the edge of the
+ * disk.
+ */
+public class SCANDiskScheduler extends DiskScheduler {
+    /**
+     * Allocate a new SCAN disk scheduler.
+     */
+    public SCANDiskScheduler() {
+    }
+
+    public SynchDisk.Request selectNext(List<SynchDisk.Request> queue,
+					int headSector) {
+	SynchDisk.Request next = nearestAhead(queue, headSector);
+	if (next == null) {
+	    ascending = !ascending;
+	    next = nearestAhead(queue, headSector);
+	}
+
+	return next;
+    }
+
+    /**
+     * Return the request nearest the head in the direction of the sweep.
+     */
+    private SynchDisk.Request nearestAhead(List<SynchDisk.Request> queue,
+					   int headSector) {
+	SynchDisk.Request best = null;
+
+	for (SynchDisk.Request request : queue) {
+	    int sector = request.getSector();
+	    if (ascending ? sector < headSector : sector >= headSector)
+		continue;
+
+	    if (best == null ||
+		(ascending ? sector < best.getSector()
+		 : sector > best.getSector()))
+		best = request;
+	}
+
+	return best;
+    }
+
+    private boolean ascending = true;
+}
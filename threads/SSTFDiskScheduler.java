@@ -0,0 +1,36 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.List;
+
+/**
+ * Serves the disk request with the shortest seek from the current head
+ * position, breaking ties in favor of the oldest request. Minimizes seeking,
+ * but can starve requests far from a busy region of the disk without the
+ * deadline <tt>SynchDisk</tt> enforces.
+ */
+public class SSTFDiskScheduler extends DiskScheduler {
+    /**
+     * Allocate a new shortest-seek-time-first disk scheduler.
+     */
+    public SSTFDiskScheduler() {
+    }
+
+    public SynchDisk.Request selectNext(List<SynchDisk.Request> queue,
+					int headSector) {
+	int headTrack = getTrack(headSector);
+	SynchDisk.Request best = null;
+	int bestDistance = 0;
+
+	for (SynchDisk.Request request : queue) {
+	    int distance = Math.abs(getTrack(request.getSector()) - headTrack);
+	    if (best == null || distance < bestDistance) {
+		best = request;
+		bestDistance = distance;
+	    }
+	}
+
+	return best;
+    }
+}
@@ -0,0 +1,414 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Provides a blocking interface to the machine's disk. A thread that reads or
+ * writes sectors sleeps until its transfer completes, while other threads
+ * keep running.
+ *
+ * <p>
+ * Requests made while the disk is busy wait in a queue. Each time the disk
+ * becomes idle, the <tt>DiskScheduler</tt> named by
+ * <tt>SynchDisk.scheduler</tt> chooses the next request, unless the oldest
+ * request has waited more than <tt>SynchDisk.deadline</tt> ticks, in which
+ * case it goes next so that no request starves. Queued requests in the same
+ * direction that extend the chosen one at either end are merged into a
+ * single transfer of up to <tt>SynchDisk.maxMergeSectors</tt> sectors.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new <tt>SynchDisk</tt>.
+     *
+     * @param	disk	the underlying disk to use.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	String schedulerName =
+	    Config.getString("SynchDisk.scheduler",
+			     "nachos.threads.CLOOKDiskScheduler");
+	scheduler = (DiskScheduler) Lib.constructObject(schedulerName);
+	scheduler.initialize(disk);
+
+	deadline = Config.getInteger("SynchDisk.deadline",
+				     20*Stats.RotationTime);
+	maxMergeSectors = Config.getInteger("SynchDisk.maxMergeSectors",
+					    disk.getSectorsPerTrack());
+	Lib.assertTrue(maxMergeSectors > 0);
+
+	disk.setInterruptHandler(new Runnable() {
+		public void run() { requestDone(); }
+	    });
+    }
+
+    /**
+     * Return the underlying disk.
+     *
+     * @return	the disk this object synchronizes.
+     */
+    public Disk getDisk() {
+	return disk;
+    }
+
+    /**
+     * Read a run of consecutive sectors, blocking until they have been read.
+     *
+     * @param	sector		the first sector to read.
+     * @param	numSectors	the number of sectors to read.
+     * @param	data		the array to read into.
+     * @param	offset		the offset in <i>data</i> of the first byte.
+     */
+    public void readSectors(int sector, int numSectors, byte[] data,
+			    int offset) {
+	request(new Request(false, sector, numSectors, data, offset));
+    }
+
+    /**
+     * Write a run of consecutive sectors, blocking until they have been
+     * written.
+     *
+     * @param	sector		the first sector to write.
+     * @param	numSectors	the number of sectors to write.
+     * @param	data		the array to write from.
+     * @param	offset		the offset in <i>data</i> of the first byte.
+     */
+    public void writeSectors(int sector, int numSectors, byte[] data,
+			     int offset) {
+	request(new Request(true, sector, numSectors, data, offset));
+    }
+
+    /**
+     * Read one sector, blocking until it has been read.
+     *
+     * @param	sector	the sector to read.
+     * @param	data	the array to read into.
+     * @param	offset	the offset in <i>data</i> of the first byte.
+     */
+    public void readSector(int sector, byte[] data, int offset) {
+	readSectors(sector, 1, data, offset);
+    }
+
+    /**
+     * Write one sector, blocking until it has been written.
+     *
+     * @param	sector	the sector to write.
+     * @param	data	the array to write from.
+     * @param	offset	the offset in <i>data</i> of the first byte.
+     */
+    public void writeSector(int sector, byte[] data, int offset) {
+	writeSectors(sector, 1, data, offset);
+    }
+
+    private void request(Request request) {
+	Lib.assertTrue(request.numSectors > 0 && request.sector >= 0 &&
+		       request.sector + request.numSectors <=
+		       disk.getNumSectors());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	request.arrivalTime = Machine.timer().getTime();
+	queue.add(request);
+	if (!disk.isBusy())
+	    startNext();
+
+	request.done.P();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Choose the next request, merge its neighbors into it, and start the
+     * transfer. Interrupts must be disabled and the disk idle.
+     */
+    private void startNext() {
+	long now = Machine.timer().getTime();
+
+	Request first = queue.getFirst();
+	if (now - first.arrivalTime > deadline) {
+	    Lib.debug(dbgDisk, "request at sector " + first.sector
+		      + " past its deadline");
+	}
+	else {
+	    first = scheduler.selectNext(queue, headSector);
+	}
+	queue.remove(first);
+
+	batch.add(first);
+	batchStart = first.sector;
+	batchEnd = first.sector + first.numSectors;
+
+	// keep extending the run while a queued request abuts either end
+	boolean merged = true;
+	while (merged) {
+	    merged = false;
+
+	    for (Iterator<Request> i=queue.iterator(); i.hasNext(); ) {
+		Request request = i.next();
+		if (request.write != first.write ||
+		    batchEnd - batchStart + request.numSectors >
+		    maxMergeSectors)
+		    continue;
+
+		if (request.sector == batchEnd) {
+		    batchEnd += request.numSectors;
+		}
+		else if (request.sector + request.numSectors == batchStart) {
+		    batchStart = request.sector;
+		}
+		else {
+		    continue;
+		}
+
+		i.remove();
+		batch.add(request);
+		Machine.stats().numDiskRequestsMerged++;
+		merged = true;
+	    }
+	}
+
+	for (Request request : batch)
+	    Machine.stats().diskQueueTicks += now - request.arrivalTime;
+
+	Machine.stats().numDiskRequests++;
+	Machine.stats().diskSeekDistance +=
+	    Math.abs(batchStart / disk.getSectorsPerTrack()
+		     - disk.getHeadTrack());
+	headSector = batchEnd;
+
+	int numSectors = batchEnd - batchStart;
+	if (batch.size() == 1) {
+	    batchData = first.data;
+	    batchOffset = first.offset;
+	}
+	else {
+	    batchData = new byte[numSectors*Disk.sectorSize];
+	    batchOffset = 0;
+
+	    if (first.write) {
+		for (Request request : batch) {
+		    System.arraycopy(request.data, request.offset, batchData,
+				     (request.sector-batchStart)*
+				     Disk.sectorSize,
+				     request.numSectors*Disk.sectorSize);
+		}
+	    }
+	}
+
+	if (first.write)
+	    disk.writeRequest(batchStart, numSectors, batchData, batchOffset);
+	else
+	    disk.readRequest(batchStart, numSectors, batchData, batchOffset);
+    }
+
+    private void requestDone() {
+	boolean copyOut = batch.size() > 1 && !batch.getFirst().write;
+
+	for (Request request : batch) {
+	    if (copyOut) {
+		System.arraycopy(batchData, (request.sector-batchStart)*
+				 Disk.sectorSize, request.data,
+				 request.offset,
+				 request.numSectors*Disk.sectorSize);
+	    }
+
+	    request.done.V();
+	}
+
+	batch.clear();
+	batchData = null;
+
+	if (!queue.isEmpty())
+	    startNext();
+    }
+
+    /**
+     * Test the disk schedulers, and test that requests queued while the disk
+     * is busy are merged and still read and write the right data. Uses
+     * <tt>ThreadedKernel.synchDisk</tt>, and restores the sectors it writes.
+     * The transfers are only tested while the kernel keeps its files in the
+     * stub file system, since a file system mounted on the disk could own
+     * those sectors and cache their contents.
+     */
+    public static void selfTest() {
+	Lib.debug(dbgDisk, "Enter SynchDisk.selfTest");
+
+	SynchDisk synchDisk = ThreadedKernel.synchDisk;
+	Disk disk = synchDisk.disk;
+	int sectorsPerTrack = disk.getSectorsPerTrack();
+
+	// each scheduler's choice from requests on tracks 6, 1, 8 and 3
+	if (disk.getNumTracks() >= 10) {
+	    LinkedList<Request> queue = new LinkedList<Request>();
+	    int[] tracks = { 6, 1, 8, 3 };
+	    for (int i=0; i<tracks.length; i++) {
+		queue.add(new Request(false, tracks[i]*sectorsPerTrack, 1,
+				      null, 0));
+	    }
+
+	    String[] names = { "FCFS", "SSTF", "CLOOK", "SCAN" };
+	    // the choices with the head at track 4, and then at track 9
+	    int[][] expected = { { 6, 6 }, { 3, 8 }, { 6, 1 }, { 6, 8 } };
+
+	    for (int i=0; i<names.length; i++) {
+		DiskScheduler scheduler = (DiskScheduler)
+		    Lib.constructObject("nachos.threads." + names[i]
+					+ "DiskScheduler");
+		scheduler.initialize(disk);
+
+		for (int j=0; j<2; j++) {
+		    int head = ((j == 0) ? 4 : 9) * sectorsPerTrack;
+		    Request next = scheduler.selectNext(queue, head);
+		    Lib.assertTrue(next.sector ==
+				   expected[i][j]*sectorsPerTrack,
+				   names[i] + " chose the wrong request");
+		}
+	    }
+	}
+
+	if (ThreadedKernel.fileSystem != Machine.stubFileSystem()) {
+	    Lib.debug(dbgDisk, "\tdisk may hold a file system, not writing");
+	    return;
+	}
+
+	// the last few sectors, and one far from them to keep the disk busy
+	final int numSectors = 4;
+	final int base = disk.getNumSectors() - numSectors;
+	int blocker = disk.getNumSectors() / 2;
+
+	byte[] saved = new byte[numSectors*Disk.sectorSize];
+	byte[] savedBlocker = new byte[Disk.sectorSize];
+	synchDisk.readSectors(base, numSectors, saved, 0);
+	synchDisk.readSector(blocker, savedBlocker, 0);
+
+	final byte[][] buffers = new byte[numSectors][Disk.sectorSize];
+	for (int i=0; i<numSectors; i++)
+	    Arrays.fill(buffers[i], (byte) (i+1));
+
+	int expectedMerges = (synchDisk.maxMergeSectors >= numSectors) ?
+	    numSectors-1 : 0;
+
+	for (int pass=0; pass<2; pass++) {
+	    final boolean write = (pass == 0);
+	    long merged = Machine.stats().numDiskRequestsMerged;
+
+	    if (!write) {
+		for (int i=0; i<numSectors; i++)
+		    Arrays.fill(buffers[i], (byte) 0);
+	    }
+
+	    // the threads queue single-sector requests behind the blocker
+	    KThread[] threads = new KThread[numSectors];
+	    for (int i=0; i<numSectors; i++) {
+		final int index = i;
+		threads[i] = new KThread(new Runnable() {
+			public void run() {
+			    if (write) {
+				ThreadedKernel.synchDisk.writeSector(
+				    base+index, buffers[index], 0);
+			    }
+			    else {
+				ThreadedKernel.synchDisk.readSector(
+				    base+index, buffers[index], 0);
+			    }
+			}
+		    });
+		threads[i].setName("disk test " + i).fork();
+	    }
+
+	    synchDisk.readSector(blocker, new byte[Disk.sectorSize], 0);
+	    for (int i=0; i<numSectors; i++)
+		threads[i].join();
+
+	    Lib.assertTrue(Machine.stats().numDiskRequestsMerged - merged ==
+			   expectedMerges, "queued requests not merged");
+	}
+
+	for (int i=0; i<numSectors; i++) {
+	    for (int j=0; j<Disk.sectorSize; j++)
+		Lib.assertTrue(buffers[i][j] == (byte) (i+1),
+			       "merged transfer moved the wrong data");
+	}
+
+	synchDisk.writeSectors(base, numSectors, saved, 0);
+	synchDisk.writeSector(blocker, savedBlocker, 0);
+    }
+
+    /**
+     * A request waiting for the disk.
+     */
+    public static class Request {
+	private Request(boolean write, int sector, int numSectors,
+			byte[] data, int offset) {
+	    this.write = write;
+	    this.sector = sector;
+	    this.numSectors = numSectors;
+	    this.data = data;
+	    this.offset = offset;
+	}
+
+	/**
+	 * Return the first sector this request transfers.
+	 *
+	 * @return	the first sector.
+	 */
+	public int getSector() {
+	    return sector;
+	}
+
+	/**
+	 * Return the number of sectors this request transfers.
+	 *
+	 * @return	the length of the request in sectors.
+	 */
+	public int getNumSectors() {
+	    return numSectors;
+	}
+
+	/**
+	 * Test whether this request is a write.
+	 *
+	 * @return	<tt>true</tt> for a write, <tt>false</tt> for a read.
+	 */
+	public boolean isWrite() {
+	    return write;
+	}
+
+	/**
+	 * Return the time at which this request was made.
+	 *
+	 * @return	the arrival time in ticks.
+	 */
+	public long getArrivalTime() {
+	    return arrivalTime;
+	}
+
+	private boolean write;
+	private int sector, numSectors;
+	private byte[] data;
+	private int offset;
+	private long arrivalTime;
+	private Semaphore done = new Semaphore(0);
+    }
+
+    private Disk disk;
+    private DiskScheduler scheduler;
+    private int deadline, maxMergeSectors;
+
+    /** Requests waiting for the disk, oldest first. */
+    private LinkedList<Request> queue = new LinkedList<Request>();
+    /** The sector following the last one transferred. */
+    private int headSector = 0;
+
+    /** The requests making up the transfer in progress. */
+    private LinkedList<Request> batch = new LinkedList<Request>();
+    private int batchStart, batchEnd;
+    private byte[] batchData;
+    private int batchOffset;
+
+    private static final char dbgDisk = 'd';
+}
@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -15,13 +16,18 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Initialize this kernel. Creates a scheduler, the first thread, and an
-     * alarm, and enables interrupts. Creates a file system if necessary.   
+     * alarm, and enables interrupts. Creates a file system if necessary, and
+     * a <tt>SynchDisk</tt> if the machine has a disk.
      */
     public void initialize(String[] args) {
 	// set scheduler
 	String schedulerName = Config.getString("ThreadedKernel.scheduler");
 	scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+	// set disk, which a file system may need
+	if (Machine.disk() != null)
+	    synchDisk = new SynchDisk(Machine.disk());
+
 	// set fileSystem
 	String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 	if (fileSystemName != null)
@@ -41,9 +47,10 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>ElevatorBank</tt>, <tt>StubFileSystem</tt>,
+     * <tt>CachingFileSystem</tt>, and <tt>SynchDisk</tt> classes. Note that
+     * the autograder never calls this method, so it is safe to put
+     * additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
@@ -58,6 +65,13 @@ public class ThreadedKernel extends Kernel {
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+	if (Machine.stubFileSystem() != null) {
+	    StubFileSystem.selfTest();
+	    CachingFileSystem.selfTest();
+	}
+	if (synchDisk != null) {
+	    SynchDisk.selfTest();
+	}
     }
     
     /**
@@ -80,6 +94,8 @@ public class ThreadedKernel extends Kernel {
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /** Globally accessible reference to the disk, if the machine has one. */
+    public static SynchDisk synchDisk = null;
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
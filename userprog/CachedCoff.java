@@ -0,0 +1,277 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+
+/**
+ * A COFF loader built from a header that has already been parsed. The header
+ * of an executable (entry point and section table) is read with a single file
+ * request by <tt>readHeader()</tt> and can then be kept by the image cache,
+ * so that running the same executable again opens the file once and reads
+ * nothing but section contents.
+ *
+ * <p>
+ * The parsing rules are the same as those of <tt>Coff</tt> and
+ * <tt>CoffSection</tt>.
+ */
+public class CachedCoff extends Coff {
+    /**
+     * Allocate a new loader for an executable whose header has already been
+     * parsed. The file becomes the property of this loader.
+     *
+     * @param	header	the parsed header of the executable.
+     * @param	file	the open executable file.
+     */
+    public CachedCoff(Header header, OpenFile file) {
+	super();
+
+	this.file = file;
+	entryPoint = header.entryPoint;
+
+	sections = new CoffSection[header.sections.length];
+	for (int s=0; s<sections.length; s++)
+	    sections[s] = new Section(header.sections[s]);
+    }
+
+    /**
+     * Read and validate the file header and section table of an executable.
+     *
+     * @param	file	the executable file.
+     * @return	the parsed header.
+     * @exception	EOFException	if the executable is corrupt.
+     */
+    public static Header readHeader(OpenFile file) throws EOFException {
+	int fileLength = file.length();
+	if (fileLength < headerLength+aoutHeaderLength) {
+	    Lib.debug(dbgCoff, "\tfile is not executable");
+	    throw new EOFException();
+	}
+
+	// the headers of a well-formed executable fit in this one read
+	byte[] headers = new byte[Math.min(fileLength, maxHeaderBlockLength)];
+	Lib.strictReadFile(file, 0, headers, 0, headers.length);
+
+	int magic = Lib.bytesToUnsignedShort(headers, 0);
+	int numSections = Lib.bytesToUnsignedShort(headers, 2);
+	int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
+	int flags = Lib.bytesToUnsignedShort(headers, 18);
+	int entryPoint = Lib.bytesToInt(headers, headerLength+16);
+
+	if (magic != 0x0162) {
+	    Lib.debug(dbgCoff, "\tincorrect magic number");
+	    throw new EOFException();
+	}
+	if (numSections < 2 || numSections > 10) {
+	    Lib.debug(dbgCoff, "\tbad section count");
+	    throw new EOFException();
+	}
+	if ((flags & 0x0003) != 0x0003) {
+	    Lib.debug(dbgCoff, "\tbad header flags");
+	    throw new EOFException();
+	}
+
+	int offset = headerLength + optionalHeaderLength;
+	int end = offset + numSections*CoffSection.headerLength;
+	if (end > fileLength) {
+	    Lib.debug(dbgCoff, "\tsection header truncated");
+	    throw new EOFException();
+	}
+
+	// only an unusually long optional header needs a second read
+	if (end > headers.length) {
+	    byte[] table = new byte[end];
+	    System.arraycopy(headers, 0, table, 0, headers.length);
+	    Lib.strictReadFile(file, headers.length, table, headers.length,
+			       end - headers.length);
+	    headers = table;
+	}
+
+	SectionHeader[] sections = new SectionHeader[numSections];
+	for (int s=0; s<numSections; s++) {
+	    sections[s] = new SectionHeader(headers,
+					    offset + s*CoffSection.headerLength,
+					    fileLength);
+	}
+
+	return new Header(entryPoint, sections);
+    }
+
+    public int getEntryPoint() {
+	Lib.assertTrue(file != null);
+
+	return entryPoint;
+    }
+
+    public void close() {
+	file.close();
+
+	sections = null;
+    }
+
+    /**
+     * The parsed header of an executable. Headers are immutable, so one header
+     * may back any number of loaders.
+     */
+    public static class Header {
+	private Header(int entryPoint, SectionHeader[] sections) {
+	    this.entryPoint = entryPoint;
+	    this.sections = sections;
+	}
+
+	private final int entryPoint;
+	private final SectionHeader[] sections;
+    }
+
+    private static class SectionHeader {
+	SectionHeader(byte[] buf, int headerOffset, int fileLength)
+	    throws EOFException {
+	    name = Lib.bytesToString(buf, headerOffset, 8);
+	    int vaddr = Lib.bytesToInt(buf, headerOffset+12);
+	    size = Lib.bytesToInt(buf, headerOffset+16);
+	    contentOffset = Lib.bytesToInt(buf, headerOffset+20);
+	    int numRelocations = Lib.bytesToUnsignedShort(buf, headerOffset+32);
+	    int flags = Lib.bytesToInt(buf, headerOffset+36);
+
+	    if (numRelocations != 0) {
+		Lib.debug(dbgCoff, "\tsection needs relocation");
+		throw new EOFException();
+	    }
+
+	    switch (flags & 0x0FFF) {
+	    case 0x0020:
+		executable = true;
+		readOnly = true;
+		initialized = true;
+		break;
+	    case 0x0040:
+		executable = false;
+		readOnly = false;
+		initialized = true;
+		break;
+	    case 0x0080:
+		executable = false;
+		readOnly = false;
+		initialized = false;
+		break;
+	    case 0x0100:
+		executable = false;
+		readOnly = true;
+		initialized = true;
+		break;
+	    default:
+		Lib.debug(dbgCoff, "\tinvalid section flags: " + flags);
+		throw new EOFException();
+	    }
+
+	    if (vaddr%Processor.pageSize != 0 || size < 0 ||
+		initialized && (contentOffset < 0 ||
+				contentOffset+size > fileLength)) {
+		Lib.debug(dbgCoff, "\tinvalid section addresses: " +
+			  "vaddr=" + vaddr + " size=" + size +
+			  " contentOffset=" + contentOffset);
+		throw new EOFException();
+	    }
+
+	    numPages = Lib.divRoundUp(size, Processor.pageSize);
+	    firstVPN = vaddr / Processor.pageSize;
+	}
+
+	final String name;
+	final boolean executable, readOnly, initialized;
+	final int numPages, firstVPN;
+	final int contentOffset, size;
+    }
+
+    /**
+     * A section of a cached executable.
+     */
+    public class Section extends CoffSection {
+	Section(SectionHeader header) {
+	    super(CachedCoff.this, header.name, header.executable,
+		  header.readOnly, header.numPages, header.firstVPN);
+
+	    this.header = header;
+	    initialized = header.initialized;
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(file != null);
+
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    int pageSize = Processor.pageSize;
+	    byte[] memory = Machine.processor().getMemory();
+	    int paddr = ppn*pageSize;
+	    int faddr = header.contentOffset + spn*pageSize;
+	    int initlen;
+
+	    if (!initialized)
+		initlen = 0;
+	    else
+		initlen = Math.min(pageSize, header.size - spn*pageSize);
+
+	    if (initlen > 0)
+		Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+
+	    Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	}
+
+	/**
+	 * Load a run of consecutive pages of this section into physical
+	 * memory, reading their contents from the executable with a single
+	 * request.
+	 *
+	 * @param	spn	the first page of the run within this section.
+	 * @param	ppns	the physical page to load each page into.
+	 * @param	count	the number of pages to load.
+	 */
+	public void loadPages(int spn, int[] ppns, int count) {
+	    Lib.assertTrue(file != null);
+
+	    Lib.assertTrue(spn>=0 && count>0 && spn+count<=numPages);
+
+	    int pageSize = Processor.pageSize;
+	    byte[] memory = Machine.processor().getMemory();
+	    int initlen;
+
+	    if (!initialized)
+		initlen = 0;
+	    else
+		initlen = Math.max(0, Math.min(count*pageSize,
+					       header.size - spn*pageSize));
+
+	    byte[] buffer = new byte[initlen];
+	    if (initlen > 0)
+		Lib.strictReadFile(file, header.contentOffset + spn*pageSize,
+				   buffer, 0, initlen);
+
+	    for (int i=0; i<count; i++) {
+		Lib.assertTrue(ppns[i]>=0 &&
+			       ppns[i]<Machine.processor().getNumPhysPages());
+
+		int paddr = ppns[i]*pageSize;
+		int pagelen = Math.max(0, Math.min(pageSize,
+						   initlen - i*pageSize));
+
+		System.arraycopy(buffer, i*pageSize, memory, paddr, pagelen);
+		Arrays.fill(memory, paddr+pagelen, paddr+pageSize, (byte) 0);
+	    }
+	}
+
+	private SectionHeader header;
+    }
+
+    private OpenFile file;
+
+    private static final int headerLength = 20;
+    private static final int aoutHeaderLength = 28;
+    private static final int maxHeaderBlockLength =
+	headerLength + aoutHeaderLength + 10*CoffSection.headerLength;
+
+    private static final char dbgCoff = 'c';
+}
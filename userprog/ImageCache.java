@@ -0,0 +1,255 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of executable images. Every process running the same
+ * executable shares the physical pages holding its read-only sections
+ * (<tt>.text</tt>, <tt>.rdata</tt>), so those pages are read from the file
+ * system once and occupy memory once no matter how many copies are running.
+ * The parsed COFF header is cached alongside, so repeated loads skip the
+ * header reads as well.
+ *
+ * <p>
+ * Images are identified by file name and length. The file system offers no
+ * modification time, so the syscall layer calls <tt>invalidate()</tt>
+ * whenever a file is created, written or removed. An image that is no longer
+ * used by any process stays cached until physical memory runs short, at
+ * which point the allocator's reclaim callback frees its pages.
+ */
+public class ImageCache {
+    /**
+     * Allocate a new image cache, and register it with the page allocator so
+     * that unused images are dropped when memory runs out.
+     */
+    public ImageCache() {
+	UserKernel.pageAllocator.addReclaimHandler(
+	    new PhysicalPageAllocator.ReclaimHandler() {
+		public void reclaim(int numPages) {
+		    reclaimUnused(numPages);
+		}
+	    });
+    }
+
+    /**
+     * Return the image for the specified executable, creating an empty one if
+     * it is not cached, and add a reference to it. Each call must be matched
+     * by a call to <tt>release()</tt>.
+     *
+     * @param	name	the name of the executable.
+     * @param	length	the length of the executable file.
+     * @return	the shared image.
+     */
+    public Image acquire(String name, int length) {
+	lock.acquire();
+
+	Image image = lookup(name, length);
+	if (image.references > 0 || !image.pages.isEmpty())
+	    Lib.debug(dbgProcess, "\tsharing cached image of " + name);
+
+	image.references++;
+
+	lock.release();
+	return image;
+    }
+
+    /**
+     * Add a reference to an image that is already in use, even if it has
+     * since been invalidated. Used by <tt>fork()</tt>, whose child must share
+     * its parent's pages rather than a newer image of the same file. Each
+     * call must be matched by a call to <tt>release()</tt>.
+     *
+     * @param	image	an image acquired by another process.
+     * @return	the same image.
+     */
+    public Image acquire(Image image) {
+	lock.acquire();
+
+	Lib.assertTrue(image.references > 0);
+	image.references++;
+
+	lock.release();
+	return image;
+    }
+
+    /**
+     * Return a COFF loader for an open executable. The first load of an
+     * executable reads its headers in one request and caches the result with
+     * the image; later loads of the same file reuse the parsed headers and
+     * read nothing. The file becomes the property of the returned loader.
+     *
+     * @param	name		the name of the executable.
+     * @param	executable	the open executable file.
+     * @return	a loader for the executable.
+     * @exception	EOFException	if the executable is corrupt.
+     */
+    public Coff loadCoff(String name, OpenFile executable)
+	throws EOFException {
+	lock.acquire();
+	Image image = lookup(name, executable.length());
+	CachedCoff.Header header = image.header;
+	lock.release();
+
+	if (header == null) {
+	    header = CachedCoff.readHeader(executable);
+	    image.header = header;
+	}
+	else {
+	    Lib.debug(dbgProcess, "\tusing cached header of " + name);
+	}
+
+	return new CachedCoff(header, executable);
+    }
+
+    /**
+     * Drop a reference obtained from <tt>acquire()</tt>. The image's pages
+     * are freed if it has been invalidated and this was the last reference;
+     * otherwise they stay cached for the next process.
+     *
+     * @param	image	the image to release.
+     */
+    public void release(Image image) {
+	lock.acquire();
+
+	Lib.assertTrue(image.references > 0);
+	image.references--;
+
+	if (image.references == 0 && !image.valid)
+	    image.freePages();
+
+	lock.release();
+    }
+
+    /**
+     * Forget any cached image of the named file. Processes already using the
+     * old image keep it until they exit.
+     *
+     * @param	name	the name of a file that has changed.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+
+	Image image = images.remove(name);
+	if (image != null) {
+	    image.valid = false;
+	    if (image.references == 0)
+		image.freePages();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Return the valid image for the specified executable, creating one if
+     * necessary. The cache lock must be held.
+     */
+    private Image lookup(String name, int length) {
+	Image image = images.get(name);
+	if (image != null && image.length != length) {
+	    images.remove(name);
+	    image.valid = false;
+	    if (image.references == 0)
+		image.freePages();
+	    image = null;
+	}
+
+	if (image == null) {
+	    image = new Image(name, length);
+	    images.put(name, image);
+	}
+
+	return image;
+    }
+
+    private void reclaimUnused(int numPages) {
+	lock.acquire();
+
+	int freed = 0;
+	for (Iterator<Image> i=images.values().iterator();
+	     i.hasNext() && freed < numPages; ) {
+	    Image image = i.next();
+
+	    // the parsed header costs no physical memory, so keep it
+	    if (image.references == 0 && !image.pages.isEmpty())
+		freed += image.freePages();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * The shared pages of one executable.
+     */
+    public class Image {
+	private Image(String name, int length) {
+	    this.name = name;
+	    this.length = length;
+	}
+
+	/**
+	 * Return the physical page holding page <i>spn</i> of a read-only
+	 * section, loading it from the executable if no process has needed it
+	 * yet.
+	 *
+	 * @param	section	a read-only section of this image.
+	 * @param	spn	the page number within the section.
+	 * @return	the physical page number, or -1 if no physical page was
+	 *		available.
+	 */
+	public int getPage(CoffSection section, int spn) {
+	    Lib.assertTrue(section.isReadOnly());
+
+	    int vpn = section.getFirstVPN() + spn;
+
+	    pageLock.acquire();
+
+	    Integer ppn = pages.get(vpn);
+	    if (ppn == null) {
+		int newPage = UserKernel.pageAllocator.allocatePage(null);
+		if (newPage != -1) {
+		    section.loadPage(spn, newPage);
+		    pages.put(vpn, newPage);
+		    ppn = newPage;
+		}
+	    }
+
+	    pageLock.release();
+	    return (ppn == null) ? -1 : ppn.intValue();
+	}
+
+	private int freePages() {
+	    int count = pages.size();
+	    for (Integer ppn : pages.values())
+		UserKernel.pageAllocator.freePage(ppn);
+	    pages.clear();
+
+	    Lib.debug(dbgProcess, "\tdropped cached pages of " + name);
+	    return count;
+	}
+
+	private String name;
+	private int length;
+	private int references = 0;
+	/** The parsed executable header, once some process has read it. */
+	private CachedCoff.Header header = null;
+	private boolean valid = true;
+
+	/** Loaded read-only pages, indexed by virtual page number. */
+	private HashMap<Integer, Integer> pages = new HashMap<Integer, Integer>();
+	private Lock pageLock = new Lock();
+    }
+
+    /** Cached images by file name, least recently acquired first. */
+    private LinkedHashMap<String, Image> images =
+	new LinkedHashMap<String, Image>(16, 0.75f, true);
+    private Lock lock = new Lock();
+
+    private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,411 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The kernel-wide table of open files. Every file a user process opens,
+ * including its executable, is opened through this table rather than
+ * directly through <tt>ThreadedKernel.fileSystem</tt>.
+ *
+ * <p>
+ * All descriptors open on the same file share one entry in the table, which
+ * counts them and holds a single handle from the underlying file system.
+ * Each descriptor keeps its own position. Handles are kept in a pool of at
+ * most <tt>UserKernel.maxOpenHandles</tt>: when the pool is full, the handle
+ * least recently used is closed, and is reopened the next time one of its
+ * descriptors is used. Far more files can therefore be open than the
+ * underlying file system allows, which for the stub file system is 16
+ * across the whole machine.
+ *
+ * <p>
+ * A handle being read or written is not closed until the operation
+ * finishes, and the handle of a removed file is never closed while it has
+ * descriptors, since it could not be reopened.
+ */
+public class OpenFileTable implements FileSystem {
+    /**
+     * Allocate a new open file table.
+     *
+     * @param	fileSystem	the file system holding the files.
+     */
+    public OpenFileTable(FileSystem fileSystem) {
+	this(fileSystem, Config.getInteger("UserKernel.maxOpenHandles", 8));
+    }
+
+    private OpenFileTable(FileSystem fileSystem, int maxOpenHandles) {
+	Lib.assertTrue(maxOpenHandles > 0);
+
+	this.fileSystem = fileSystem;
+	this.maxOpenHandles = maxOpenHandles;
+    }
+
+    /**
+     * Open a file, sharing the entry of any descriptor already open on it.
+     *
+     * @param	name		the name of the file.
+     * @param	truncate	if <tt>true</tt>, the file is created if it does
+     *				not exist, and truncated to length 0 if it
+     *				does.
+     * @return	a new descriptor positioned at the start of the file, or
+     *		<tt>null</tt> if the file could not be opened.
+     */
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+
+	Entry entry = entries.get(name);
+	if (entry == null || truncate) {
+	    OpenFile handle = openHandle(name, truncate);
+	    if (handle == null) {
+		lock.release();
+		return null;
+	    }
+
+	    if (entry == null) {
+		entry = new Entry(name);
+		entries.put(name, entry);
+	    }
+
+	    // truncating through a second handle leaves the first one valid
+	    if (entry.handle == null) {
+		entry.handle = handle;
+		pool.put(entry, entry);
+	    }
+	    else {
+		handle.close();
+	    }
+	}
+
+	entry.refCount++;
+
+	lock.release();
+	return new Descriptor(entry);
+    }
+
+    /**
+     * Open another descriptor on the same file as an existing one, at the same
+     * position. Unlike <tt>open()</tt>, this cannot fail, and works on a file
+     * that has been removed.
+     *
+     * @param	file	a descriptor opened through this table.
+     * @return	a new descriptor sharing <i>file</i>'s entry.
+     */
+    public OpenFile duplicate(OpenFile file) {
+	Lib.assertTrue(file instanceof Descriptor &&
+		       file.getFileSystem() == this);
+
+	Entry entry = ((Descriptor) file).entry;
+	Lib.assertTrue(entry != null);
+
+	lock.acquire();
+	entry.refCount++;
+	lock.release();
+
+	Descriptor copy = new Descriptor(entry);
+	copy.seek(file.tell());
+	return copy;
+    }
+
+    /**
+     * Remove a file. Descriptors already open on it keep working until they
+     * are closed.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file was removed.
+     */
+    public boolean remove(String name) {
+	lock.acquire();
+
+	// the file cannot be reopened once it is gone, so hold on to it
+	Entry entry = entries.get(name);
+	if (entry != null) {
+	    if (!acquireHandle(entry)) {
+		lock.release();
+		return false;
+	    }
+
+	    entries.remove(name);
+	    entry.removed = true;
+	    entry.busy--;
+	}
+
+	boolean successful = fileSystem.remove(name);
+
+	lock.release();
+	return successful;
+    }
+
+    /**
+     * Return the number of entries in the table.
+     *
+     * @return	the number of distinct files open.
+     */
+    public int getNumEntries() {
+	return entries.size();
+    }
+
+    /**
+     * Make sure an entry has a handle, reopening it if the pool closed it,
+     * and keep the handle open until <tt>releaseHandle()</tt>. The lock must
+     * be held.
+     *
+     * @return	<tt>true</tt> if the entry has a handle.
+     */
+    private boolean acquireHandle(Entry entry) {
+	if (entry.handle == null) {
+	    entry.handle = openHandle(entry.name, false);
+	    if (entry.handle == null)
+		return false;
+
+	    Lib.debug(dbgFiles, "\treopened " + entry.name);
+	    Machine.stats().numHandleReopens++;
+	}
+
+	// moves the entry to the most recently used end of the pool
+	pool.put(entry, entry);
+	entry.busy++;
+	return true;
+    }
+
+    private void releaseHandle(Entry entry) {
+	lock.acquire();
+	entry.busy--;
+	lock.release();
+    }
+
+    /**
+     * Open a handle from the underlying file system, first closing the least
+     * recently used handles to keep the pool within bounds. If the open
+     * fails while another handle could still be closed, the underlying file
+     * system may be out of handles, so the open is retried.
+     */
+    private OpenFile openHandle(String name, boolean truncate) {
+	while (pool.size() >= maxOpenHandles && evictHandle())
+	    ;
+
+	while (true) {
+	    OpenFile handle = fileSystem.open(name, truncate);
+	    if (handle != null || !evictHandle())
+		return handle;
+	}
+    }
+
+    /**
+     * Close the least recently used handle that is not in use.
+     *
+     * @return	<tt>true</tt> if a handle was closed.
+     */
+    private boolean evictHandle() {
+	for (Iterator<Entry> i=pool.keySet().iterator(); i.hasNext(); ) {
+	    Entry entry = i.next();
+	    if (entry.busy == 0 && !entry.removed) {
+		Lib.debug(dbgFiles, "\tclosing handle of " + entry.name);
+
+		i.remove();
+		entry.handle.close();
+		entry.handle = null;
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    private void closeHandle(Entry entry) {
+	pool.remove(entry);
+	entry.handle.close();
+	entry.handle = null;
+    }
+
+    /**
+     * The state shared by every descriptor open on one file.
+     */
+    private static class Entry {
+	Entry(String name) {
+	    this.name = name;
+	}
+
+	String name;
+	/** The underlying handle, or <tt>null</tt> if the pool closed it. */
+	OpenFile handle = null;
+	/** The number of descriptors open on this entry. */
+	int refCount = 0;
+	/** The number of operations using the handle right now. */
+	int busy = 0;
+	boolean removed = false;
+    }
+
+    /**
+     * A descriptor open on an entry, with a position of its own.
+     */
+    private class Descriptor extends OpenFileWithPosition {
+	Descriptor(Entry entry) {
+	    super(OpenFileTable.this, entry.name);
+
+	    this.entry = entry;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    OpenFile handle = acquire();
+	    if (handle == null)
+		return -1;
+
+	    int amount = handle.read(pos, buf, offset, length);
+	    releaseHandle(entry);
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    OpenFile handle = acquire();
+	    if (handle == null)
+		return -1;
+
+	    int amount = handle.write(pos, buf, offset, length);
+	    releaseHandle(entry);
+	    return amount;
+	}
+
+	public int length() {
+	    OpenFile handle = acquire();
+	    if (handle == null)
+		return -1;
+
+	    int length = handle.length();
+	    releaseHandle(entry);
+	    return length;
+	}
+
+	public void close() {
+	    if (entry == null)
+		return;
+
+	    lock.acquire();
+
+	    if (--entry.refCount == 0) {
+		if (entry.handle != null)
+		    closeHandle(entry);
+		if (!entry.removed)
+		    entries.remove(entry.name);
+	    }
+
+	    lock.release();
+	    entry = null;
+	}
+
+	/**
+	 * Return the entry's handle, which stays open until released.
+	 */
+	private OpenFile acquire() {
+	    if (entry == null)
+		return null;
+
+	    lock.acquire();
+	    boolean acquired = acquireHandle(entry);
+	    lock.release();
+
+	    return acquired ? entry.handle : null;
+	}
+
+	private Entry entry;
+    }
+
+    /**
+     * Test that handles are closed and reopened as the pool requires, that
+     * descriptors keep their own positions, and that a removed file stays
+     * readable through its descriptors. Uses a table over
+     * <tt>ThreadedKernel.fileSystem</tt> with a pool of two handles.
+     */
+    public static void selfTest() {
+	Lib.debug(dbgFiles, "Enter OpenFileTable.selfTest");
+
+	OpenFileTable table = new OpenFileTable(ThreadedKernel.fileSystem, 2);
+	final int numFiles = 6;
+
+	String[] names = new String[numFiles];
+	OpenFile[] first = new OpenFile[numFiles];
+	OpenFile[] second = new OpenFile[numFiles];
+	byte[] buf = new byte[8];
+
+	for (int i=0; i<numFiles; i++) {
+	    names[i] = "oft" + i + ".tmp";
+	    first[i] = table.open(names[i], true);
+	    Lib.assertTrue(first[i] != null);
+
+	    byte[] data = ("file " + i + "\n").getBytes();
+	    Lib.assertTrue(first[i].write(data, 0, data.length) ==
+			   data.length);
+	    first[i].seek(0);
+
+	    second[i] = table.open(names[i], false);
+	    Lib.assertTrue(second[i] != null);
+	}
+
+	Lib.assertTrue(table.getNumEntries() == numFiles);
+	Lib.assertTrue(table.pool.size() <= 2);
+
+	// every read after the first few reopens a closed handle
+	long reopens = Machine.stats().numHandleReopens;
+
+	for (int i=0; i<numFiles; i++) {
+	    Lib.assertTrue(first[i].read(buf, 0, 5) == 5);
+	    Lib.assertTrue(new String(buf, 0, 5).equals("file "));
+	    Lib.assertTrue(second[i].read(buf, 0, 6) == 6);
+	    Lib.assertTrue(new String(buf, 0, 6).equals("file " + i));
+	}
+
+	for (int i=0; i<numFiles; i++) {
+	    Lib.assertTrue(first[i].tell() == 5 && second[i].tell() == 6);
+	    Lib.assertTrue(first[i].read(buf, 0, 1) == 1 &&
+			   buf[0] == (byte) ('0'+i));
+	}
+
+	Lib.assertTrue(Machine.stats().numHandleReopens >= reopens+numFiles);
+	Lib.assertTrue(table.pool.size() <= 2);
+
+	// a removed file keeps its handle through any number of evictions
+	Lib.assertTrue(table.remove(names[0]));
+	Lib.assertTrue(table.open(names[0], false) == null);
+
+	OpenFile copy = table.duplicate(first[0]);
+	Lib.assertTrue(copy.tell() == first[0].tell());
+	first[0].close();
+
+	for (int i=1; i<numFiles; i++)
+	    Lib.assertTrue(first[i].read(buf, 0, 1) == 1);
+
+	second[0].seek(0);
+	Lib.assertTrue(second[0].read(buf, 0, 6) == 6);
+	Lib.assertTrue(new String(buf, 0, 6).equals("file 0"));
+	Lib.assertTrue(copy.read(buf, 0, 1) == 1 && buf[0] == '\n');
+
+	second[0].close();
+	copy.close();
+	Lib.assertTrue(table.getNumEntries() == numFiles-1);
+
+	for (int i=1; i<numFiles; i++) {
+	    first[i].close();
+	    second[i].close();
+	    Lib.assertTrue(table.remove(names[i]));
+	}
+
+	Lib.assertTrue(table.getNumEntries() == 0 && table.pool.isEmpty());
+    }
+
+    private FileSystem fileSystem;
+    private int maxOpenHandles;
+
+    /** The entries of files that have not been removed, by name. */
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    /** The entries holding handles, least recently used first. */
+    private LinkedHashMap<Entry, Entry> pool =
+	new LinkedHashMap<Entry, Entry>(16, 0.75f, true);
+
+    private Lock lock = new Lock();
+
+    private static final char dbgFiles = 'a';
+}
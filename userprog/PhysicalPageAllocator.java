@@ -0,0 +1,300 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Hands out pages of physical memory to user processes. Free pages are kept
+ * both in a bitmap, used to find contiguous runs, and in a doubly-linked
+ * free list threaded through two arrays, so that allocating or freeing a
+ * single page (or unlinking any page found by a run search) takes constant
+ * time.
+ *
+ * <p>
+ * All operations disable interrupts while they touch the allocator state, so
+ * the allocator may be shared by every process in the kernel.
+ */
+public class PhysicalPageAllocator {
+    /**
+     * Allocate a new page allocator managing the specified number of physical
+     * pages. All pages are initially free.
+     *
+     * @param	numPhysPages	the number of physical pages to manage.
+     */
+    public PhysicalPageAllocator(int numPhysPages) {
+	this.numPhysPages = numPhysPages;
+	head = numPhysPages;
+
+	allocated = new BitSet(numPhysPages);
+	owners = new UserProcess[numPhysPages];
+	next = new int[numPhysPages+1];
+	prev = new int[numPhysPages+1];
+
+	next[head] = prev[head] = head;
+	for (int ppn=numPhysPages-1; ppn>=0; ppn--)
+	    link(ppn);
+
+	numFreePages = numPhysPages;
+    }
+
+    /**
+     * A callback invoked when an allocation cannot be satisfied. The handler
+     * should try to release at least <i>numPages</i> pages back to the
+     * allocator (for example by evicting them) before returning. Handlers are
+     * called with interrupts in their original state, so they may block.
+     */
+    public interface ReclaimHandler {
+	/**
+	 * Try to free pages.
+	 *
+	 * @param	numPages	the number of pages the allocator needs.
+	 */
+	public void reclaim(int numPages);
+    }
+
+    /**
+     * Register a handler to be called when physical memory runs out.
+     *
+     * @param	handler	the reclaim handler.
+     */
+    public void addReclaimHandler(ReclaimHandler handler) {
+	reclaimHandlers.add(handler);
+    }
+
+    /**
+     * Allocate a single physical page.
+     *
+     * @param	owner	the process the page is charged to.
+     * @return	the physical page number, or -1 if no page is available.
+     */
+    public int allocatePage(UserProcess owner) {
+	int ppn = tryAllocatePage(owner);
+	if (ppn == -1 && reclaim(1))
+	    ppn = tryAllocatePage(owner);
+
+	return ppn;
+    }
+
+    /**
+     * Allocate <i>numPages</i> physically contiguous pages.
+     *
+     * @param	numPages	the length of the run.
+     * @param	owner		the process the pages are charged to.
+     * @return	the first physical page number of the run, or -1 if no run
+     *		of that length is free.
+     */
+    public int allocateRun(int numPages, UserProcess owner) {
+	Lib.assertTrue(numPages > 0);
+
+	int first = tryAllocateRun(numPages, owner);
+	if (first == -1 && reclaim(numPages))
+	    first = tryAllocateRun(numPages, owner);
+
+	return first;
+    }
+
+    /**
+     * Allocate <i>numPages</i> physical pages, preferring a single contiguous
+     * run and falling back to scattered pages.
+     *
+     * @param	numPages	the number of pages to allocate.
+     * @param	owner		the process the pages are charged to.
+     * @return	the allocated physical page numbers, or <tt>null</tt> if not
+     *		enough memory is free (in which case nothing is allocated).
+     */
+    public int[] allocatePages(int numPages, UserProcess owner) {
+	int[] ppns = new int[numPages];
+	if (numPages == 0)
+	    return ppns;
+
+	int first = tryAllocateRun(numPages, owner);
+	if (first != -1) {
+	    for (int i=0; i<numPages; i++)
+		ppns[i] = first+i;
+	    return ppns;
+	}
+
+	if (getNumFreePages() < numPages)
+	    reclaim(numPages - getNumFreePages());
+
+	for (int i=0; i<numPages; i++) {
+	    ppns[i] = allocatePage(owner);
+	    if (ppns[i] == -1) {
+		for (int j=0; j<i; j++)
+		    freePage(ppns[j]);
+		return null;
+	    }
+	}
+
+	return ppns;
+    }
+
+    /**
+     * Return a page to the allocator.
+     *
+     * @param	ppn	the physical page to free.
+     */
+    public void freePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(allocated.get(ppn));
+	allocated.clear(ppn);
+	charge(owners[ppn], -1);
+	owners[ppn] = null;
+	link(ppn);
+	numFreePages++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of free physical pages.
+     *
+     * @return	the number of free physical pages.
+     */
+    public int getNumFreePages() {
+	return numFreePages;
+    }
+
+    /**
+     * Return the number of physical pages currently charged to a process.
+     *
+     * @param	owner	the process.
+     * @return	the number of pages it owns.
+     */
+    public int getNumPages(UserProcess owner) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Integer count = pageCounts.get(owner);
+
+	Machine.interrupt().restore(intStatus);
+	return (count == null) ? 0 : count.intValue();
+    }
+
+    /**
+     * Return the process a physical page is charged to.
+     *
+     * @param	ppn	the physical page.
+     * @return	the owning process, or <tt>null</tt> if the page is free or
+     *		owned by the kernel.
+     */
+    public UserProcess getOwner(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	return owners[ppn];
+    }
+
+    private int tryAllocatePage(UserProcess owner) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = next[head];
+	if (ppn == head)
+	    ppn = -1;
+	else
+	    take(ppn, owner);
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    private int tryAllocateRun(int numPages, UserProcess owner) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int first = -1;
+	if (numPages <= numFreePages) {
+	    int start = allocated.nextClearBit(0);
+	    while (start + numPages <= numPhysPages) {
+		int end = allocated.nextSetBit(start);
+		if (end == -1)
+		    end = numPhysPages;
+
+		if (end - start >= numPages) {
+		    first = start;
+		    break;
+		}
+
+		start = allocated.nextClearBit(end);
+	    }
+	}
+
+	if (first != -1) {
+	    for (int ppn=first; ppn<first+numPages; ppn++)
+		take(ppn, owner);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return first;
+    }
+
+    private boolean reclaim(int numPages) {
+	if (reclaimHandlers.isEmpty())
+	    return false;
+
+	Lib.debug(dbgProcess, "reclaiming " + numPages + " physical pages");
+
+	for (ReclaimHandler handler : reclaimHandlers)
+	    handler.reclaim(numPages);
+
+	return true;
+    }
+
+    private void take(int ppn, UserProcess owner) {
+	Lib.assertTrue(!allocated.get(ppn));
+
+	unlink(ppn);
+	allocated.set(ppn);
+	owners[ppn] = owner;
+	charge(owner, 1);
+	numFreePages--;
+    }
+
+    private void charge(UserProcess owner, int delta) {
+	if (owner == null)
+	    return;
+
+	Integer count = pageCounts.get(owner);
+	int newCount = ((count == null) ? 0 : count.intValue()) + delta;
+
+	if (newCount == 0)
+	    pageCounts.remove(owner);
+	else
+	    pageCounts.put(owner, newCount);
+    }
+
+    private void link(int ppn) {
+	next[ppn] = next[head];
+	prev[ppn] = head;
+	prev[next[head]] = ppn;
+	next[head] = ppn;
+    }
+
+    private void unlink(int ppn) {
+	next[prev[ppn]] = next[ppn];
+	prev[next[ppn]] = prev[ppn];
+    }
+
+    private int numPhysPages;
+    private int numFreePages;
+
+    /** Set bits mark allocated pages. */
+    private BitSet allocated;
+    private UserProcess[] owners;
+    private HashMap<UserProcess, Integer> pageCounts =
+	new HashMap<UserProcess, Integer>();
+
+    /** Free list links; slot <tt>numPhysPages</tt> is the sentinel. */
+    private int[] next, prev;
+    private int head;
+
+    private LinkedList<ReclaimHandler> reclaimHandlers =
+	new LinkedList<ReclaimHandler>();
+
+    private static final char dbgProcess = 'a';
+}
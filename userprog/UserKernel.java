@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -16,13 +18,18 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, a physical page
+     * allocator, an executable image cache and the open file table, and sets
+     * the processor's exception handler.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+	pageAllocator =
+	    new PhysicalPageAllocator(Machine.processor().getNumPhysPages());
+	imageCache = new ImageCache();
+	openFileTable = new OpenFileTable(fileSystem);
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -30,11 +37,15 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Test the console device.
+     * Test the open file table, the vectored and ring system calls, and the
+     * console device.
      */	
     public void selfTest() {
 	super.selfTest();
 
+	OpenFileTable.selfTest();
+	UserProcess.selfTest();
+
 	System.out.println("Testing the console device. Typed characters");
 	System.out.println("will be echoed until q is typed.");
 
@@ -61,6 +72,62 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Assign a new process ID. IDs come from a counter and are never reused,
+     * so assignment takes constant time no matter how many processes have
+     * run before.
+     *
+     * @return	a fresh process ID.
+     */
+    public static int allocatePID() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int pid = nextPID++;
+
+	Machine.interrupt().restore(intStatus);
+	return pid;
+    }
+
+    /**
+     * Add a process that has been successfully loaded to the process table.
+     *
+     * @param	process	the process to add.
+     */
+    public static void addProcess(UserProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(processTable.put(process.getPID(), process) == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove an exiting process from the process table.
+     *
+     * @param	process	the process to remove.
+     * @return	<tt>true</tt> if no processes remain, in which case the kernel
+     *		should be terminated.
+     */
+    public static boolean removeProcess(UserProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(processTable.remove(process.getPID()) == process);
+	boolean last = processTable.isEmpty();
+
+	Machine.interrupt().restore(intStatus);
+	return last;
+    }
+
+    /**
+     * Return the running process with the specified ID.
+     *
+     * @param	pid	the process ID.
+     * @return	the process, or <tt>null</tt> if no such process is running.
+     */
+    public static UserProcess getProcess(int pid) {
+	return processTable.get(pid);
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -110,6 +177,20 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the physical page allocator. */
+    public static PhysicalPageAllocator pageAllocator;
+
+    /** Globally accessible reference to the executable image cache. */
+    public static ImageCache imageCache;
+
+    /** Globally accessible reference to the kernel-wide open file table. */
+    public static OpenFileTable openFileTable;
+
+    /** Running processes, indexed by process ID. */
+    private static HashMap<Integer, UserProcess> processTable =
+	new HashMap<Integer, UserProcess>();
+    private static int nextPID = 0;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
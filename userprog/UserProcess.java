@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -23,10 +25,36 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	pid = UserKernel.allocatePID();
+
+	fileTable[fdStandardInput] = UserKernel.console.openForReading();
+	fileTable[fdStandardOutput] = UserKernel.console.openForWriting();
+    }
+
+    /**
+     * Allocate a process with <i>numPages</i> pages of zeroed memory, and no
+     * program, process ID or console descriptors. Such a process is never
+     * run; <tt>selfTest()</tt> uses one to call the system call handlers.
+     *
+     * @param	numPages	the number of pages of memory to give it.
+     */
+    private UserProcess(int numPages) {
+	pid = -1;
+
+	int[] ppns = UserKernel.pageAllocator.allocatePages(numPages, null);
+	Lib.assertTrue(ppns != null);
+
+	this.numPages = numPages;
+	pageTable = new TranslationEntry[numPages];
+	sharedPages = new boolean[numPages];
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, ppns[vpn], true, false,
+						  false, false);
+	    Arrays.fill(memory, ppns[vpn]*pageSize, (ppns[vpn]+1)*pageSize,
+			(byte) 0);
+	}
     }
     
     /**
@@ -51,12 +79,23 @@ public class UserProcess {
     public boolean execute(String name, String[] args) {
 	if (!load(name, args))
 	    return false;
+
+	UserKernel.addProcess(this);
 	
 	new UThread(this).setName(name).fork();
 
 	return true;
     }
 
+    /**
+     * Return this process's ID.
+     *
+     * @return	the process ID.
+     */
+    public int getPID() {
+	return pid;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -89,13 +128,48 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
+	byte[] memory = Machine.processor().getMemory();
+
+	// strings that end on their first page are decoded straight out of
+	// physical memory; only longer ones need a staging buffer
+	byte[] bytes = null;
+	int length = 0;
+
+	while (length <= maxLength) {
+	    int addr = vaddr + length;
+	    int vpn = Processor.pageFromAddress(addr);
+	    TranslationEntry entry = translateVPN(vpn, false);
+	    if (entry == null)
+		return null;
+
+	    int paddr = entry.ppn*pageSize + Processor.offsetFromAddress(addr);
+	    int amount = Math.min(maxLength+1 - length,
+				  pageSize - Processor.offsetFromAddress(addr));
+	    String result = null;
+
+	    for (int i=0; i<amount && result == null; i++) {
+		if (memory[paddr+i] == 0) {
+		    if (bytes == null) {
+			result = new String(memory, paddr, i);
+		    }
+		    else {
+			System.arraycopy(memory, paddr, bytes, length, i);
+			result = new String(bytes, 0, length+i);
+		    }
+		}
+	    }
+
+	    if (result == null) {
+		if (bytes == null)
+		    bytes = new byte[maxLength+1];
+		System.arraycopy(memory, paddr, bytes, length, amount);
+		length += amount;
+	    }
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	    releaseVPN(vpn);
 
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
+	    if (result != null)
+		return result;
 	}
 
 	return null;
@@ -131,16 +205,7 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
-
-	return amount;
+	return transferVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -174,18 +239,120 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
+	return transferVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Copy data between the specified array and this process's virtual
+     * memory, one page at a time. Each virtual page is translated through
+     * <tt>translateVPN()</tt>; pages that turn out to be physically adjacent
+     * are merged into a single <tt>System.arraycopy()</tt>. The copy stops at
+     * the first page that cannot be translated, including a read-only page
+     * when writing.
+     *
+     * @param	vaddr	the first byte of virtual memory to access.
+     * @param	data	the array to copy to or from.
+     * @param	offset	the first byte of the array to access.
+     * @param	length	the number of bytes to transfer.
+     * @param	writing	<tt>true</tt> to copy from the array into virtual
+     *			memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    private int transferVirtualMemory(int vaddr, byte[] data, int offset,
+				      int length, boolean writing) {
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = 0;
+	int runStart = -1, runLength = 0;
+	int runVPN = -1, runPages = 0;
+
+	while (amount < length) {
+	    int addr = vaddr + amount;
+	    int vpn = Processor.pageFromAddress(addr);
+	    TranslationEntry entry = translateVPN(vpn, writing);
+	    if (entry == null)
+		break;
+
+	    int paddr = entry.ppn*pageSize + Processor.offsetFromAddress(addr);
+	    int pageAmount = Math.min(length - amount,
+				      pageSize - Processor.offsetFromAddress(addr));
+
+	    if (runStart + runLength != paddr) {
+		copyRun(memory, runStart, data, offset+amount-runLength,
+			runLength, writing);
+		releaseRun(runVPN, runPages);
+		runStart = paddr;
+		runLength = 0;
+		runVPN = vpn;
+		runPages = 0;
+	    }
+
+	    runLength += pageAmount;
+	    runPages++;
+	    amount += pageAmount;
+	}
+
+	copyRun(memory, runStart, data, offset+amount-runLength, runLength,
+		writing);
+	releaseRun(runVPN, runPages);
 
 	return amount;
     }
 
+    private void releaseRun(int firstVPN, int numPages) {
+	for (int i=0; i<numPages; i++)
+	    releaseVPN(firstVPN+i);
+    }
+
+    private static void copyRun(byte[] memory, int paddr, byte[] data,
+				int offset, int length, boolean writing) {
+	if (length == 0)
+	    return;
+
+	if (writing)
+	    System.arraycopy(data, offset, memory, paddr, length);
+	else
+	    System.arraycopy(memory, paddr, data, offset, length);
+    }
+
+    /**
+     * Look up the translation for the specified virtual page on behalf of a
+     * kernel access to this process's memory, and mark the page used (and
+     * dirty if <i>writing</i>). Subclasses that page on demand override this
+     * to bring the page in first. Every successful call must be matched by a
+     * call to <tt>releaseVPN()</tt> once the kernel is done with the page.
+     *
+     * @param	vpn	the virtual page to translate.
+     * @param	writing	<tt>true</tt> if the kernel is about to modify the
+     *			page.
+     * @return	the translation entry, or <tt>null</tt> if the page is not
+     *		mapped or is read-only and <i>writing</i> is set.
+     */
+    protected TranslationEntry translateVPN(int vpn, boolean writing) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid || (writing && entry.readOnly))
+	    return null;
+
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	return entry;
+    }
+
+    /**
+     * Called when the kernel has finished accessing a page returned by
+     * <tt>translateVPN()</tt>. Subclasses that can take pages away from a
+     * process use this to let the page go again; by default it does nothing.
+     *
+     * @param	vpn	the virtual page that was translated.
+     */
+    protected void releaseVPN(int vpn) {
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -199,14 +366,17 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	OpenFile executable = UserKernel.openFileTable.open(name, false);
 	if (executable == null) {
 	    Lib.debug(dbgProcess, "\topen failed");
 	    return false;
 	}
 
+	executableName = name;
+	executableLength = executable.length();
+
 	try {
-	    coff = new Coff(executable);
+	    coff = UserKernel.imageCache.loadCoff(name, executable);
 	}
 	catch (EOFException e) {
 	    executable.close();
@@ -282,11 +452,28 @@ public class UserProcess {
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-	if (numPages > Machine.processor().getNumPhysPages()) {
-	    coff.close();
+	image = UserKernel.imageCache.acquire(executableName, executableLength);
+
+	// read-only sections come from the shared image; everything else
+	// needs private pages
+	int numPrivatePages = numPages;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (section.isReadOnly())
+		numPrivatePages -= section.getLength();
+	}
+
+	pageTable = new TranslationEntry[numPages];
+	sharedPages = new boolean[numPages];
+
+	int[] ppns = UserKernel.pageAllocator.allocatePages(numPrivatePages,
+							   this);
+	if (ppns == null) {
+	    unloadSections();
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
 	}
+	int nextPrivatePage = 0;
 
 	// load sections
 	for (int s=0; s<coff.getNumSections(); s++) {
@@ -298,8 +485,37 @@ public class UserProcess {
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+		if (section.isReadOnly()) {
+		    int ppn = image.getPage(section, i);
+		    if (ppn == -1) {
+			for (int j=nextPrivatePage; j<ppns.length; j++)
+			    UserKernel.pageAllocator.freePage(ppns[j]);
+			unloadSections();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		    }
+
+		    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true,
+							  false, false);
+		    sharedPages[vpn] = true;
+		}
+		else {
+		    int ppn = ppns[nextPrivatePage++];
+		    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false,
+							  false, false);
+		    section.loadPage(i, ppn);
+		}
+	    }
+	}
+
+	// the stack and argument pages start out zeroed
+	byte[] memory = Machine.processor().getMemory();
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn] == null) {
+		int ppn = ppns[nextPrivatePage++];
+		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false,
+						      false, false);
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
 	    }
 	}
 	
@@ -310,6 +526,21 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry != null && entry.valid) {
+		if (!sharedPages[vpn])
+		    UserKernel.pageAllocator.freePage(entry.ppn);
+		entry.valid = false;
+	    }
+	}
+
+	if (image != null) {
+	    UserKernel.imageCache.release(image);
+	    image = null;
+	}
+
+	coff.close();
     }    
 
     /**
@@ -322,6 +553,14 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked child resumes from a snapshot of its parent's registers
+	if (forkRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    forkRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -336,9 +575,12 @@ public class UserProcess {
     }
 
     /**
-     * Handle the halt() system call. 
+     * Handle the halt() system call. Only the root process may halt the
+     * machine; the call is ignored for every other process.
      */
     private int handleHalt() {
+	if (pid != rootPID)
+	    return -1;
 
 	Machine.halt();
 	
@@ -346,6 +588,678 @@ public class UserProcess {
 	return 0;
     }
 
+    /**
+     * Handle the exit() system call.
+     *
+     * @param	status	the exit status to report to the parent.
+     * @return	never returns.
+     */
+    private int handleExit(int status) {
+	terminate(status, true);
+
+	Lib.assertNotReached("terminate() returned!");
+	return 0;
+    }
+
+    /**
+     * Handle the exec() system call. Loads the named program into a new child
+     * process and starts it.
+     *
+     * @param	nameAddr	the virtual address of the executable's name.
+     * @param	argc		the number of arguments.
+     * @param	argvAddr	the virtual address of the argument pointers.
+     * @return	the child's process ID, or -1 on error.
+     */
+    private int handleExec(int nameAddr, int argc, int argvAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+	if (name == null || !name.endsWith(".coff") || argc < 0 ||
+	    argc > pageSize/4)
+	    return -1;
+
+	String[] args = new String[argc];
+	byte[] pointer = new byte[4];
+	for (int i=0; i<argc; i++) {
+	    if (readVirtualMemory(argvAddr + i*4, pointer) != 4)
+		return -1;
+
+	    args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					      pageSize);
+	    if (args[i] == null)
+		return -1;
+	}
+
+	UserProcess child = newUserProcess();
+	child.parent = this;
+	children.put(child.pid, child);
+
+	if (!child.execute(name, args)) {
+	    children.remove(child.pid);
+	    child.closeFiles();
+	    return -1;
+	}
+
+	return child.pid;
+    }
+
+    /**
+     * Handle the fork() system call. Creates a child running a copy of this
+     * process: the same program, a copy of the address space made by
+     * <tt>copyAddressSpace()</tt>, and the same open files, each with its own
+     * file pointer starting where the parent's is. The child resumes after
+     * the syscall with a return value of 0.
+     *
+     * @return	the child's process ID, or -1 on error.
+     */
+    private int handleFork() {
+	UserProcess child = newUserProcess();
+	if (!child.copyProcess(this)) {
+	    child.closeFiles();
+	    return -1;
+	}
+
+	Processor processor = Machine.processor();
+	child.forkRegisters = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    child.forkRegisters[i] = processor.readRegister(i);
+
+	// as if the child had executed the syscall and advanced its PC
+	int nextPC = processor.readRegister(Processor.regNextPC);
+	child.forkRegisters[Processor.regV0] = 0;
+	child.forkRegisters[Processor.regPC] = nextPC;
+	child.forkRegisters[Processor.regNextPC] = nextPC+4;
+
+	child.parent = this;
+	children.put(child.pid, child);
+
+	UserKernel.addProcess(child);
+
+	new UThread(child).setName(executableName).fork();
+
+	return child.pid;
+    }
+
+    /**
+     * Make this new process a copy of <i>parent</i> for <tt>fork()</tt>.
+     * Opens the parent's executable again, so that this process owns its own
+     * loader, copies the address space, and duplicates the parent's open
+     * files.
+     *
+     * @param	parent	the process being forked.
+     * @return	<tt>true</tt> if the copy succeeded.
+     */
+    private boolean copyProcess(UserProcess parent) {
+	Lib.debug(dbgProcess, "UserProcess.fork(" + parent.pid + ") -> "
+		  + pid);
+
+	OpenFile executable =
+	    UserKernel.openFileTable.open(parent.executableName, false);
+	if (executable == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return false;
+	}
+
+	// the program must not have changed since the parent loaded it
+	if (executable.length() != parent.executableLength) {
+	    executable.close();
+	    Lib.debug(dbgProcess, "\texecutable changed");
+	    return false;
+	}
+
+	executableName = parent.executableName;
+	executableLength = parent.executableLength;
+
+	try {
+	    coff = UserKernel.imageCache.loadCoff(executableName, executable);
+	}
+	catch (EOFException e) {
+	    executable.close();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    return false;
+	}
+
+	numPages = parent.numPages;
+	initialPC = parent.initialPC;
+	initialSP = parent.initialSP;
+	argc = parent.argc;
+	argv = parent.argv;
+
+	if (!copyAddressSpace(parent))
+	    return false;
+
+	// the ring is in the copied memory, at the same address
+	ringAddr = parent.ringAddr;
+	ringEntries = parent.ringEntries;
+
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    OpenFile file = parent.fileTable[fd];
+
+	    // the console descriptors opened by the constructor stand in for
+	    // the parent's; other console descriptors are not inherited
+	    if (file == null || file.getFileSystem() == null) {
+		if (file == null && fileTable[fd] != null) {
+		    fileTable[fd].close();
+		    fileTable[fd] = null;
+		}
+		continue;
+	    }
+
+	    // share the entry, since the file may have been removed since
+	    if (fileTable[fd] != null)
+		fileTable[fd].close();
+	    fileTable[fd] = UserKernel.openFileTable.duplicate(file);
+	}
+
+	return true;
+    }
+
+    /**
+     * Give this new process a copy of <i>parent</i>'s address space. Called
+     * by <tt>fork()</tt> after the executable has been opened and
+     * <tt>numPages</tt> set. Read-only pages are shared through the image;
+     * every other page is copied into a newly allocated frame.
+     *
+     * <p>
+     * On failure, releases everything allocated so far, including the
+     * executable.
+     *
+     * @param	parent	the process being forked.
+     * @return	<tt>true</tt> if the address space was copied.
+     */
+    protected boolean copyAddressSpace(UserProcess parent) {
+	image = UserKernel.imageCache.acquire(parent.image);
+
+	pageTable = new TranslationEntry[numPages];
+	sharedPages = new boolean[numPages];
+
+	int numPrivatePages = 0;
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (!parent.sharedPages[vpn])
+		numPrivatePages++;
+	}
+
+	int[] ppns = UserKernel.pageAllocator.allocatePages(numPrivatePages,
+							   this);
+	if (ppns == null) {
+	    unloadSections();
+	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	    return false;
+	}
+	int nextPrivatePage = 0;
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = parent.pageTable[vpn];
+
+	    if (parent.sharedPages[vpn]) {
+		pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true,
+						      true, false, false);
+		sharedPages[vpn] = true;
+	    }
+	    else {
+		int ppn = ppns[nextPrivatePage++];
+		pageTable[vpn] = new TranslationEntry(vpn, ppn, true,
+						      entry.readOnly, false,
+						      false);
+		System.arraycopy(memory, entry.ppn*pageSize,
+				 memory, ppn*pageSize, pageSize);
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Handle the join() system call. Blocks on the child's completion
+     * semaphore and then disowns the child.
+     *
+     * @param	childPID	the process ID of the child to wait for.
+     * @param	statusAddr	the virtual address to store the exit status.
+     * @return	1 if the child exited normally, 0 if it was killed by an
+     *		exception, or -1 if <i>childPID</i> is not a child.
+     */
+    private int handleJoin(int childPID, int statusAddr) {
+	UserProcess child = children.remove(childPID);
+	if (child == null)
+	    return -1;
+
+	child.completion.P();
+
+	if (writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus))
+	    != 4)
+	    return -1;
+
+	return child.exitedNormally ? 1 : 0;
+    }
+
+    /**
+     * Close every file this process has open, including the console
+     * descriptors a new process starts with.
+     */
+    private void closeFiles() {
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] != null) {
+		fileTable[fd].close();
+		fileTable[fd] = null;
+	    }
+	}
+    }
+
+    /**
+     * Terminate this process: close its files, release its memory, disown
+     * its children, wake a joining parent, and finish the current thread.
+     * Halts the machine if this was the last process. Never returns.
+     *
+     * @param	status		the exit status.
+     * @param	normal		<tt>false</tt> if the process is being killed
+     *				because of an unhandled exception.
+     */
+    protected void terminate(int status, boolean normal) {
+	closeFiles();
+	unloadSections();
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (UserProcess child : children.values())
+	    child.parent = null;
+	children.clear();
+	Machine.interrupt().restore(intStatus);
+
+	exitStatus = status;
+	exitedNormally = normal;
+	completion.V();
+
+	if (UserKernel.removeProcess(this))
+	    Kernel.kernel.terminate();
+
+	KThread.finish();
+    }
+
+    /**
+     * Handle the creat() and open() system calls. Both open the named file
+     * and bind it to the lowest free file descriptor; creat() additionally
+     * creates the file if it does not exist.
+     *
+     * @param	nameAddr	the virtual address of the file name.
+     * @param	create		<tt>true</tt> to create the file.
+     * @return	the new file descriptor, or -1 on error.
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+	String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+	if (name == null)
+	    return -1;
+
+	int fd = allocateFileDescriptor();
+	if (fd == -1)
+	    return -1;
+
+	if (create)
+	    UserKernel.imageCache.invalidate(name);
+
+	OpenFile file = UserKernel.openFileTable.open(name, create);
+	if (file == null)
+	    return -1;
+
+	fileTable[fd] = file;
+	fileWritten[fd] = false;
+	return fd;
+    }
+
+    /**
+     * Handle the read() system call.
+     *
+     * @param	fd	the file descriptor to read from.
+     * @param	vaddr	the virtual address of the user buffer.
+     * @param	count	the maximum number of bytes to read.
+     * @return	the number of bytes read, or -1 on error.
+     */
+    private int handleRead(int fd, int vaddr, int count) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null || !canTransfer(fd) || count < 0)
+	    return -1;
+
+	return transferFile(file, vaddr, count, true);
+    }
+
+    /**
+     * Handle the write() system call.
+     *
+     * @param	fd	the file descriptor to write to.
+     * @param	vaddr	the virtual address of the user buffer.
+     * @param	count	the number of bytes to write.
+     * @return	the number of bytes written, or -1 on error.
+     */
+    private int handleWrite(int fd, int vaddr, int count) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null || !canTransfer(fd) || count < 0)
+	    return -1;
+
+	invalidateImage(fd, file);
+
+	return transferFile(file, vaddr, count, false);
+    }
+
+    /**
+     * Forget any cached image of a file the first time it is written through
+     * a descriptor, since it may be an executable. Later writes through the
+     * same descriptor do not invalidate the image again, so a program should
+     * not be run while it is still being written.
+     *
+     * @param	fd	the file descriptor being written.
+     * @param	file	the file open as <i>fd</i>.
+     */
+    private void invalidateImage(int fd, OpenFile file) {
+	if (!fileWritten[fd] && file.getFileSystem() != null) {
+	    UserKernel.imageCache.invalidate(file.getName());
+	    fileWritten[fd] = true;
+	}
+    }
+
+    /**
+     * Handle the readv() and writev() system calls, which transfer a list of
+     * buffers described by an array of <tt>struct iovec</tt> in user memory,
+     * each a buffer address followed by its length. The buffers are
+     * transferred in order, stopping at the first that is only partly
+     * transferred.
+     *
+     * @param	fd		the file descriptor.
+     * @param	iovAddr		the virtual address of the iovec array.
+     * @param	iovCount	the number of buffers.
+     * @param	toMemory	<tt>true</tt> for readv(), <tt>false</tt> for
+     *				writev().
+     * @return	the total number of bytes transferred, or -1 on error.
+     */
+    private int handleVector(int fd, int iovAddr, int iovCount,
+			     boolean toMemory) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null || !canTransfer(fd) || iovCount < 0 ||
+	    iovCount > maxIovecs)
+	    return -1;
+
+	byte[] iov = new byte[iovCount*iovecSize];
+	if (readVirtualMemory(iovAddr, iov) != iov.length)
+	    return -1;
+
+	for (int i=0; i<iovCount; i++) {
+	    if (Lib.bytesToInt(iov, i*iovecSize+4) < 0)
+		return -1;
+	}
+
+	if (!toMemory)
+	    invalidateImage(fd, file);
+
+	int total = 0;
+	for (int i=0; i<iovCount; i++) {
+	    int vaddr = Lib.bytesToInt(iov, i*iovecSize);
+	    int length = Lib.bytesToInt(iov, i*iovecSize+4);
+
+	    int result = transferFile(file, vaddr, length, toMemory);
+	    if (result == -1)
+		return (total > 0) ? total : -1;
+
+	    total += result;
+	    if (result < length)
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Handle the ioring_setup() system call, which registers a submission
+     * and completion ring. The ring occupies the start of one page of user
+     * memory: a header of four counters, <tt>sqHead</tt>, <tt>sqTail</tt>,
+     * <tt>cqHead</tt> and <tt>cqTail</tt>, followed by <i>entries</i>
+     * submission entries and then <i>entries</i> completion entries. The
+     * whole ring is zeroed, which also checks that all of it is writable,
+     * so that ioring_enter() can always update it.
+     *
+     * @param	addr	the page-aligned address of the ring, or 0 to
+     *			unregister the ring.
+     * @param	entries	the number of entries in each queue, a power of two.
+     * @return	0 on success, or -1 on error.
+     */
+    private int handleRingSetup(int addr, int entries) {
+	if (addr == 0) {
+	    ringAddr = -1;
+	    return 0;
+	}
+
+	if (Processor.offsetFromAddress(addr) != 0 || entries <= 0 ||
+	    (entries & (entries-1)) != 0)
+	    return -1;
+
+	int ringSize = ringHeaderSize + entries*(sqeSize+cqeSize);
+	if (ringSize > pageSize ||
+	    writeVirtualMemory(addr, new byte[ringSize]) != ringSize)
+	    return -1;
+
+	ringAddr = addr;
+	ringEntries = entries;
+	return 0;
+    }
+
+    /**
+     * Handle the ioring_enter() system call. Up to <i>count</i> operations
+     * are taken from the submission queue, between <tt>sqHead</tt> and
+     * <tt>sqTail</tt>, and performed in order, and each result is posted to
+     * the completion queue with the operation's user data. Processing stops
+     * early if the completion queue fills up. The kernel advances
+     * <tt>sqHead</tt> and <tt>cqTail</tt>; the process advances the others.
+     * An entry is consumed before its operation runs, so if its completion
+     * cannot be posted, the call fails but the operation is not repeated by
+     * the next call.
+     *
+     * @param	count	the most operations to perform.
+     * @return	the number of operations performed, or -1 on error.
+     */
+    private int handleRingEnter(int count) {
+	if (ringAddr == -1 || count < 0)
+	    return -1;
+
+	byte[] header = new byte[ringHeaderSize];
+	if (readVirtualMemory(ringAddr, header) != ringHeaderSize)
+	    return -1;
+
+	int sqHead = Lib.bytesToInt(header, 0);
+	int sqTail = Lib.bytesToInt(header, 4);
+	int cqHead = Lib.bytesToInt(header, 8);
+	int cqTail = Lib.bytesToInt(header, 12);
+
+	// the counters run freely, so only their differences matter
+	if (sqTail-sqHead < 0 || sqTail-sqHead > ringEntries ||
+	    cqTail-cqHead < 0 || cqTail-cqHead > ringEntries)
+	    return -1;
+
+	int sqAddr = ringAddr + ringHeaderSize;
+	int cqAddr = sqAddr + ringEntries*sqeSize;
+	int mask = ringEntries-1;
+
+	byte[] sqe = new byte[sqeSize];
+	byte[] cqe = new byte[cqeSize];
+	int done = 0;
+	boolean lost = false;
+
+	while (done < count && sqHead != sqTail &&
+	       cqTail-cqHead < ringEntries) {
+	    if (readVirtualMemory(sqAddr + (sqHead&mask)*sqeSize, sqe) !=
+		sqeSize)
+		break;
+
+	    int opcode = Lib.bytesToInt(sqe, 0);
+	    int fd = Lib.bytesToInt(sqe, 4);
+	    int vaddr = Lib.bytesToInt(sqe, 8);
+	    int length = Lib.bytesToInt(sqe, 12);
+
+	    // consume the entry first, so that it never runs twice
+	    sqHead++;
+
+	    int result;
+	    switch (opcode) {
+	    case ringOpRead:
+		result = handleRead(fd, vaddr, length);
+		break;
+	    case ringOpWrite:
+		result = handleWrite(fd, vaddr, length);
+		break;
+	    case ringOpReadv:
+		result = handleVector(fd, vaddr, length, true);
+		break;
+	    case ringOpWritev:
+		result = handleVector(fd, vaddr, length, false);
+		break;
+	    default:
+		result = -1;
+		break;
+	    }
+
+	    // the completion carries the user data back unchanged
+	    System.arraycopy(sqe, 16, cqe, 0, 4);
+	    Lib.bytesFromInt(cqe, 4, result);
+	    if (writeVirtualMemory(cqAddr + (cqTail&mask)*cqeSize, cqe) !=
+		cqeSize) {
+		lost = true;
+		break;
+	    }
+
+	    cqTail++;
+	    done++;
+	}
+
+	Lib.bytesFromInt(header, 0, sqHead);
+	Lib.bytesFromInt(header, 12, cqTail);
+	writeVirtualMemory(ringAddr, header, 0, 4);
+	writeVirtualMemory(ringAddr+12, header, 12, 4);
+
+	if (lost) {
+	    Lib.debug(dbgProcess, "\tring: completion lost");
+	    return -1;
+	}
+
+	Lib.debug(dbgProcess, "\tring: " + done + " operations in one trap");
+	return done;
+    }
+
+    /**
+     * Handle the close() system call.
+     *
+     * @param	fd	the file descriptor to close.
+     * @return	0 on success, or -1 on error.
+     */
+    private int handleClose(int fd) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null)
+	    return -1;
+
+	fileTable[fd] = null;
+	file.close();
+	return 0;
+    }
+
+    /**
+     * Handle the unlink() system call.
+     *
+     * @param	nameAddr	the virtual address of the file name.
+     * @return	0 on success, or -1 on error.
+     */
+    private int handleUnlink(int nameAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxFileNameLength);
+	if (name == null)
+	    return -1;
+
+	UserKernel.imageCache.invalidate(name);
+
+	return UserKernel.openFileTable.remove(name) ? 0 : -1;
+    }
+
+    /**
+     * Move data between an open file and this process's virtual memory. Each
+     * page of the user buffer is translated separately and handed straight to
+     * the file as a slice of <tt>Processor.getMemory()</tt>, so the data is
+     * copied exactly once and no kernel buffer is allocated.
+     *
+     * <p>
+     * The transfer stops at the first invalid page, at a read-only page when
+     * reading into memory, or when the file returns fewer bytes than asked.
+     *
+     * @param	file		the file to read from or write to.
+     * @param	vaddr		the first byte of the user buffer.
+     * @param	length		the number of bytes to transfer.
+     * @param	toMemory	<tt>true</tt> to read from the file into memory,
+     *				<tt>false</tt> to write memory to the file.
+     * @return	the number of bytes transferred, or -1 if nothing could be
+     *		transferred because of an error.
+     */
+    private int transferFile(OpenFile file, int vaddr, int length,
+			     boolean toMemory) {
+	byte[] memory = Machine.processor().getMemory();
+	int transferred = 0;
+
+	while (transferred < length) {
+	    int addr = vaddr + transferred;
+	    int pageOffset = Processor.offsetFromAddress(addr);
+
+	    int vpn = Processor.pageFromAddress(addr);
+	    TranslationEntry entry = translateVPN(vpn, toMemory);
+	    if (entry == null)
+		break;
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int amount = Math.min(length-transferred, pageSize-pageOffset);
+
+	    int result;
+	    if (toMemory)
+		result = file.read(memory, paddr, amount);
+	    else
+		result = file.write(memory, paddr, amount);
+
+	    releaseVPN(vpn);
+
+	    if (result == -1)
+		return (transferred > 0) ? transferred : -1;
+
+	    transferred += result;
+	    if (result < amount)
+		return transferred;
+	}
+
+	return (transferred == 0 && length > 0) ? -1 : transferred;
+    }
+
+    /**
+     * Return the lowest unused file descriptor, or -1 if the file table is
+     * full.
+     */
+    private int allocateFileDescriptor() {
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] == null)
+		return fd;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Test whether the file bound to a descriptor may be read and written by
+     * system calls. Always <tt>true</tt> here; subclasses may refuse some
+     * descriptors.
+     *
+     * @param	fd	a file descriptor that is in use.
+     * @return	<tt>true</tt> if read() and write() may use <i>fd</i>.
+     */
+    protected boolean canTransfer(int fd) {
+	return true;
+    }
+
+    /**
+     * Return the open file bound to the specified file descriptor, or
+     * <tt>null</tt> if the descriptor is out of range or unused.
+     */
+    private OpenFile getOpenFile(int fd) {
+	if (fd < 0 || fd >= fileTable.length)
+	    return null;
+
+	return fileTable[fd];
+    }
+
 
     private static final int
         syscallHalt = 0,
@@ -357,7 +1271,12 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFork = 13,
+	syscallReadv = 14,
+	syscallWritev = 15,
+	syscallRingSetup = 16,
+	syscallRingEnter = 17;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -378,6 +1297,17 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *								int count);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *								int count);
+     *								</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  ioring_setup(struct ioring *ring,
+     *								int entries);
+     *								</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  ioring_enter(int count);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -391,11 +1321,38 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
-
+	case syscallExit:
+	    return handleExit(a0);
+	case syscallExec:
+	    return handleExec(a0, a1, a2);
+	case syscallJoin:
+	    return handleJoin(a0, a1);
+	case syscallCreate:
+	    return handleOpen(a0, true);
+	case syscallOpen:
+	    return handleOpen(a0, false);
+	case syscallRead:
+	    return handleRead(a0, a1, a2);
+	case syscallWrite:
+	    return handleWrite(a0, a1, a2);
+	case syscallClose:
+	    return handleClose(a0);
+	case syscallUnlink:
+	    return handleUnlink(a0);
+	case syscallFork:
+	    return handleFork();
+	case syscallReadv:
+	    return handleVector(a0, a1, a2, true);
+	case syscallWritev:
+	    return handleVector(a0, a1, a2, false);
+	case syscallRingSetup:
+	    return handleRingSetup(a0, a1);
+	case syscallRingEnter:
+	    return handleRingEnter(a0);
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-	    Lib.assertNotReached("Unknown system call!");
+	    terminate(-1, false);
 	}
 	return 0;
     }
@@ -426,24 +1383,205 @@ public class UserProcess {
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    terminate(-1, false);
 	}
     }
 
+    /**
+     * Test the readv(), writev(), ioring_setup() and ioring_enter() handlers
+     * on a process with three pages of memory, transferring to and from a
+     * scratch file.
+     */
+    public static void selfTest() {
+	Lib.debug(dbgProcess, "Enter UserProcess.selfTest");
+
+	UserProcess process = new UserProcess(3);
+	String name = "ring.tmp";
+	OpenFile file = UserKernel.openFileTable.open(name, true);
+	Lib.assertTrue(file != null);
+
+	int fd = 2;
+	process.fileTable[fd] = file;
+
+	// writev() gathers three buffers into one file
+	process.writeVirtualMemory(0, "hello ".getBytes());
+	process.writeVirtualMemory(100, "vectored ".getBytes());
+	process.writeVirtualMemory(200, "world".getBytes());
+	process.writeIovecs(512, new int[] { 0, 6, 100, 9, 200, 5 });
+	Lib.assertTrue(process.handleVector(fd, 512, 3, false) == 20);
+	Lib.assertTrue(file.length() == 20);
+
+	Lib.assertTrue(process.handleVector(fd, 512, maxIovecs+1, false) == -1);
+	process.writeIovecs(512, new int[] { 0, -1 });
+	Lib.assertTrue(process.handleVector(fd, 512, 1, false) == -1);
+
+	// readv() scatters it again, stopping at the end of the file
+	file.seek(0);
+	process.writeIovecs(512, new int[] { 300, 4, 400, 100, 600, 10 });
+	Lib.assertTrue(process.handleVector(fd, 512, 3, true) == 20);
+	Lib.assertTrue(process.readString(300, 4).equals("hell"));
+	Lib.assertTrue(process.readString(400, 16).equals("o vectored world"));
+
+	// a four-entry ring in the last page
+	int ring = 2*pageSize, entries = 4;
+	int sq = ring + ringHeaderSize, cq = sq + entries*sqeSize;
+	Lib.assertTrue(process.handleRingSetup(ring+4, entries) == -1);
+	Lib.assertTrue(process.handleRingSetup(ring, 3) == -1);
+	Lib.assertTrue(process.handleRingSetup(ring, 64) == -1);
+	Lib.assertTrue(process.handleRingSetup(ring, entries) == 0);
+
+	file.seek(0);
+	process.submit(sq, 0, ringOpRead, fd, 700, 5);
+	process.submit(sq, 1, ringOpWrite, fd, 100, 9);
+	process.submit(sq, 2, 9, fd, 700, 5);
+	process.submit(sq, 3, ringOpRead, fd+1, 700, 5);
+	process.writeInt(ring+4, 4);
+
+	Lib.assertTrue(process.handleRingEnter(2) == 2);
+	Lib.assertTrue(process.readInt(ring) == 2 &&
+		       process.readInt(ring+12) == 2);
+	Lib.assertTrue(process.handleRingEnter(10) == 2);
+
+	int[] results = { 5, 9, -1, -1 };
+	for (int i=0; i<entries; i++) {
+	    Lib.assertTrue(process.readInt(cq + i*cqeSize) == 100+i);
+	    Lib.assertTrue(process.readInt(cq + i*cqeSize+4) == results[i]);
+	}
+	Lib.assertTrue(process.readString(700, 5).equals("hello"));
+	Lib.assertTrue(file.tell() == 14);
+
+	// nothing runs while the completion queue is full
+	process.submit(sq, 4, ringOpRead, fd, 700, 1);
+	process.writeInt(ring+4, 5);
+	Lib.assertTrue(process.handleRingEnter(1) == 0);
+	process.writeInt(ring+8, 4);
+	Lib.assertTrue(process.handleRingEnter(1) == 1);
+	Lib.assertTrue(process.readInt(cq + 4) == 1);
+
+	// nor if the header is corrupt
+	process.submit(sq, 5, ringOpRead, fd, 700, 1);
+	process.writeInt(ring+4, 11);
+	Lib.assertTrue(process.handleRingEnter(1) == -1);
+	process.writeInt(ring+4, 6);
+	Lib.assertTrue(file.tell() == 15);
+	Lib.assertTrue(process.handleRingEnter(1) == 1);
+	Lib.assertTrue(file.tell() == 16);
+
+	// a ring must be writable, and a failed setup keeps the old ring
+	process.pageTable[2].readOnly = true;
+	Lib.assertTrue(process.handleRingSetup(ring, entries) == -1);
+	process.pageTable[2].readOnly = false;
+	Lib.assertTrue(process.readInt(ring) == 6);
+
+	Lib.assertTrue(process.handleRingSetup(0, 0) == 0);
+	Lib.assertTrue(process.handleRingEnter(1) == -1);
+
+	file.close();
+	UserKernel.openFileTable.remove(name);
+	for (int vpn=0; vpn<process.numPages; vpn++)
+	    UserKernel.pageAllocator.freePage(process.pageTable[vpn].ppn);
+    }
+
+    /**
+     * Helpers for <tt>selfTest()</tt>, which fill in its process's memory.
+     */
+    private void writeInt(int vaddr, int value) {
+	byte[] buf = new byte[4];
+	Lib.bytesFromInt(buf, 0, value);
+	Lib.assertTrue(writeVirtualMemory(vaddr, buf) == 4);
+    }
+
+    private int readInt(int vaddr) {
+	byte[] buf = new byte[4];
+	Lib.assertTrue(readVirtualMemory(vaddr, buf) == 4);
+	return Lib.bytesToInt(buf, 0);
+    }
+
+    private String readString(int vaddr, int length) {
+	byte[] buf = new byte[length];
+	Lib.assertTrue(readVirtualMemory(vaddr, buf) == length);
+	return new String(buf);
+    }
+
+    private void writeIovecs(int vaddr, int[] iovecs) {
+	for (int i=0; i<iovecs.length; i++)
+	    writeInt(vaddr + i*4, iovecs[i]);
+    }
+
+    private void submit(int sq, int index, int opcode, int fd, int vaddr,
+			int length) {
+	int sqe = sq + (index & (ringEntries-1))*sqeSize;
+	writeInt(sqe, opcode);
+	writeInt(sqe+4, fd);
+	writeInt(sqe+8, vaddr);
+	writeInt(sqe+12, length);
+	writeInt(sqe+16, 100+index);
+    }
+
     /** The program being run by this process. */
     protected Coff coff;
 
+    /** The shared image holding the program's read-only pages. */
+    protected ImageCache.Image image;
+    /** The name and length of the executable file. */
+    protected String executableName;
+    protected int executableLength;
+
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /** Marks pages that belong to <tt>image</tt> rather than this process. */
+    protected boolean[] sharedPages;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
+
+    /** This process's open files, indexed by file descriptor. */
+    protected OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+    /** Marks descriptors that have invalidated their file's image. */
+    private boolean[] fileWritten = new boolean[maxOpenFiles];
+
+    /** This process's ID. */
+    protected int pid;
+    /** The process that exec'd this one, or <tt>null</tt> if orphaned. */
+    protected UserProcess parent = null;
+    /** Children that have not yet been joined, indexed by process ID. */
+    protected HashMap<Integer, UserProcess> children =
+	new HashMap<Integer, UserProcess>();
+
+    private int exitStatus;
+    private boolean exitedNormally;
+    /** Released once when this process exits; <tt>join()</tt> waits on it. */
+    private Semaphore completion = new Semaphore(0);
     
     private int initialPC, initialSP;
     private int argc, argv;
+    /** Registers a forked child starts with, or <tt>null</tt>. */
+    private int[] forkRegisters = null;
+
+    /** The address of the registered I/O ring, or -1 if there is none. */
+    private int ringAddr = -1;
+    private int ringEntries;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
+
+    private static final int rootPID = 0;
+    private static final int maxOpenFiles = 16;
+    private static final int maxFileNameLength = 256;
+    private static final int fdStandardInput = 0;
+    private static final int fdStandardOutput = 1;
+
+    /** The most buffers one readv() or writev() may transfer. */
+    private static final int maxIovecs = 16;
+    private static final int iovecSize = 8;
+
+    private static final int ringHeaderSize = 16;
+    private static final int sqeSize = 20, cqeSize = 8;
+    private static final int
+	ringOpRead = 0,
+	ringOpWrite = 1,
+	ringOpReadv = 2,
+	ringOpWritev = 3;
 }
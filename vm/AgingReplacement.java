@@ -0,0 +1,62 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The aging algorithm. Every page has an 8-bit reference history; at each
+ * sample the history is shifted right and the page's used bit is shifted in
+ * at the top, then cleared. The page with the smallest history, i.e. the one
+ * referenced least in recent samples, is evicted.
+ */
+public class AgingReplacement extends ReplacementPolicy {
+    /**
+     * Allocate a new aging replacement policy.
+     */
+    public AgingReplacement() {
+    }
+
+    public void initialize(InvertedPageTable table) {
+	super.initialize(table);
+
+	history = new int[table.getNumFrames()];
+    }
+
+    public void pageLoaded(int ppn) {
+	// the faulting reference counts as a use
+	history[ppn] = 0x80;
+    }
+
+    public void sample() {
+	for (int ppn=0; ppn<history.length; ppn++) {
+	    if (table.getFrame(ppn).isPageable()) {
+		history[ppn] >>>= 1;
+		if (table.testAndClearUsed(ppn))
+		    history[ppn] |= 0x80;
+	    }
+	}
+    }
+
+    public int selectVictim() {
+	sample();
+
+	int victim = -1;
+	for (int i=0; i<history.length; i++) {
+	    // start the scan after the last victim to spread ties around
+	    int ppn = (hand+i) % history.length;
+	    if (table.getFrame(ppn).isEvictable() &&
+		(victim == -1 || history[ppn] < history[victim]))
+		victim = ppn;
+	}
+
+	if (victim != -1)
+	    hand = (victim+1) % history.length;
+
+	return victim;
+    }
+
+    private int[] history;
+    private int hand = 0;
+}
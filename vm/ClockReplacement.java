@@ -0,0 +1,38 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The clock (second chance) algorithm. A hand sweeps the frames in order;
+ * a page whose used bit is set has the bit cleared and is passed over, and
+ * the first page found with its used bit clear is evicted.
+ */
+public class ClockReplacement extends ReplacementPolicy {
+    /**
+     * Allocate a new clock replacement policy.
+     */
+    public ClockReplacement() {
+    }
+
+    public int selectVictim() {
+	int numFrames = table.getNumFrames();
+
+	// two sweeps clear every used bit, so a third finds a victim if any
+	// frame is evictable at all
+	for (int i=0; i<2*numFrames+1; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    if (table.getFrame(ppn).isEvictable() &&
+		!table.testAndClearUsed(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,155 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed in-memory tier in front of the swap file, in the manner of
+ * Linux's zram. Evicted pages are deflated and kept in host memory, up to a
+ * fixed budget of compressed bytes, so that swapping them in and out costs no
+ * file system I/O. Pages that are entirely zero, common in bss and stack, are
+ * recorded without being compressed and cost nothing against the budget.
+ *
+ * <p>
+ * The store is indexed by swap slot, so that <tt>SwapManager</tt> keeps a
+ * single namespace of slots whether a page lives here or in the swap file.
+ * Callers must hold <tt>VMKernel.pagingLock</tt>.
+ */
+public class CompressedSwap {
+    /**
+     * Allocate a new compressed store.
+     *
+     * @param	budget	the most compressed bytes to hold at once.
+     */
+    public CompressedSwap(int budget) {
+	this.budget = budget;
+    }
+
+    /**
+     * Compress a page into the store, replacing any copy already held for
+     * the slot. Fails if the page does not compress to less than a page, or
+     * if it would not fit in the budget.
+     *
+     * @param	slot	the swap slot of the page.
+     * @param	memory	the array holding the page.
+     * @param	offset	the offset of the page in <i>memory</i>.
+     * @return	<tt>true</tt> if the page is now held in the store.
+     */
+    public boolean store(int slot, byte[] memory, int offset) {
+	remove(slot);
+
+	if (isZero(memory, offset)) {
+	    pages.put(slot, zeroPage);
+	    return true;
+	}
+
+	deflater.reset();
+	deflater.setInput(memory, offset, pageSize);
+	deflater.finish();
+	int length = deflater.deflate(buffer, 0, buffer.length);
+
+	// a page that does not shrink is cheaper to keep in the file
+	if (!deflater.finished() || length >= pageSize ||
+	    bytesUsed + length > budget)
+	    return false;
+
+	byte[] compressedPage = new byte[length];
+	System.arraycopy(buffer, 0, compressedPage, 0, length);
+
+	pages.put(slot, compressedPage);
+	bytesUsed += length;
+	return true;
+    }
+
+    /**
+     * Decompress the page held for a slot.
+     *
+     * @param	slot	the swap slot of the page.
+     * @param	memory	the array to decompress into.
+     * @param	offset	the offset of the page in <i>memory</i>.
+     * @return	<tt>true</tt> if the store held the page.
+     */
+    public boolean load(int slot, byte[] memory, int offset) {
+	byte[] compressedPage = pages.get(slot);
+	if (compressedPage == null)
+	    return false;
+
+	if (compressedPage == zeroPage) {
+	    Arrays.fill(memory, offset, offset+pageSize, (byte) 0);
+	    return true;
+	}
+
+	inflater.reset();
+	inflater.setInput(compressedPage);
+	try {
+	    Lib.assertTrue(inflater.inflate(memory, offset, pageSize) ==
+			   pageSize, "compressed swap corrupt");
+	}
+	catch (DataFormatException e) {
+	    Lib.assertNotReached("compressed swap corrupt");
+	}
+
+	return true;
+    }
+
+    /**
+     * Test whether the store holds the page for a slot.
+     *
+     * @param	slot	the swap slot.
+     * @return	<tt>true</tt> if the page is held here.
+     */
+    public boolean contains(int slot) {
+	return pages.containsKey(slot);
+    }
+
+    /**
+     * Drop the page held for a slot, if any.
+     *
+     * @param	slot	the swap slot.
+     */
+    public void remove(int slot) {
+	byte[] compressedPage = pages.remove(slot);
+	if (compressedPage != null)
+	    bytesUsed -= compressedPage.length;
+    }
+
+    /**
+     * Return the number of compressed bytes held.
+     *
+     * @return	the part of the budget in use.
+     */
+    public int getBytesUsed() {
+	return bytesUsed;
+    }
+
+    private static boolean isZero(byte[] memory, int offset) {
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[offset+i] != 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    private int budget;
+    private int bytesUsed = 0;
+
+    /** The compressed contents of each slot held here. */
+    private HashMap<Integer, byte[]> pages = new HashMap<Integer, byte[]>();
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[pageSize*2];
+
+    private static final int pageSize = Processor.pageSize;
+    /** Stands for any page that is entirely zero. */
+    private static final byte[] zeroPage = new byte[0];
+}
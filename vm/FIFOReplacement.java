@@ -0,0 +1,42 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Evicts the page that has been resident longest, regardless of use.
+ */
+public class FIFOReplacement extends ReplacementPolicy {
+    /**
+     * Allocate a new FIFO replacement policy.
+     */
+    public FIFOReplacement() {
+    }
+
+    public void initialize(InvertedPageTable table) {
+	super.initialize(table);
+
+	loadTime = new long[table.getNumFrames()];
+    }
+
+    public void pageLoaded(int ppn) {
+	loadTime[ppn] = ++numLoads;
+    }
+
+    public int selectVictim() {
+	int victim = -1;
+
+	for (int ppn=0; ppn<loadTime.length; ppn++) {
+	    if (table.getFrame(ppn).isEvictable() &&
+		(victim == -1 || loadTime[ppn] < loadTime[victim]))
+		victim = ppn;
+	}
+
+	return victim;
+    }
+
+    private long[] loadTime;
+    private long numLoads = 0;
+}
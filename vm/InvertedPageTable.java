@@ -0,0 +1,423 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A global inverted page table with one entry per physical frame. Each entry
+ * records which process and virtual page occupy the frame, how many kernel
+ * operations have it pinned, and a mirror of the page's used and dirty bits.
+ * A hash index from (process ID, virtual page) to frame lets a TLB miss find
+ * a resident page, and lets the replacement policy go from a frame to its
+ * owner, in constant time.
+ *
+ * <p>
+ * Frames holding shared executable pages have no single owner. They appear in
+ * the index once per process mapping them, but their frame entry has a
+ * <tt>null</tt> owner and they are never chosen for eviction. Frames holding
+ * pages of memory-mapped files are shared the same way, but also record the
+ * file and page they cache, and may be evicted through the file.
+ *
+ * <p>
+ * After <tt>fork()</tt>, a private page may be shared copy-on-write by every
+ * process descended from its owner. Such a frame has no owner either; it
+ * keeps the list of processes sharing it, whose length is the frame's
+ * reference count, and all of them map it at the same virtual page.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table for the specified number of frames.
+     *
+     * @param	numPhysPages	the number of physical frames.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	frames = new Frame[numPhysPages];
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    frames[ppn] = new Frame(ppn);
+    }
+
+    /**
+     * The state of one physical frame.
+     */
+    public static class Frame {
+	private Frame(int ppn) {
+	    this.ppn = ppn;
+	}
+
+	/** The physical page number of this frame. */
+	public final int ppn;
+	/** The process whose private page occupies this frame, if any. */
+	public VMProcess owner = null;
+	/** The owner's page table entry for this frame. */
+	public TranslationEntry entry = null;
+	/** The process ID of the owner. */
+	public int pid = -1;
+	/** The virtual page number in the owner's address space. */
+	public int vpn = -1;
+	/** The number of kernel operations that need this frame resident. */
+	public int pinCount = 0;
+	/** The number of processes mapping this frame as a shared page. */
+	public int sharers = 0;
+	/** Mirror of the page's used bit. */
+	public boolean used = false;
+	/** Mirror of the page's dirty bit. */
+	public boolean dirty = false;
+	/**
+	 * The owner's virtual time when the working set sampler last saw the
+	 * page referenced, or -1 if it has not looked since the page was loaded.
+	 */
+	public long lastReference = -1;
+	/** The mapped file whose page this frame caches, if any. */
+	public PageCache.MappedFile file = null;
+	/** The page number within <tt>file</tt>. */
+	public int filePage = -1;
+	/** The processes sharing this frame copy-on-write, or <tt>null</tt>. */
+	public LinkedList<VMProcess> copies = null;
+
+	/**
+	 * Test whether this frame holds a page the replacement policy manages:
+	 * a private page, a page shared copy-on-write, or a page of a mapped
+	 * file.
+	 *
+	 * @return	<tt>true</tt> if the frame's page can be paged out.
+	 */
+	public boolean isPageable() {
+	    return owner != null || copies != null || file != null;
+	}
+
+	/**
+	 * Test whether this frame holds a page that may be evicted now.
+	 *
+	 * @return	<tt>true</tt> if the frame is pageable and unpinned.
+	 */
+	public boolean isEvictable() {
+	    return isPageable() && pinCount == 0;
+	}
+    }
+
+    /**
+     * Record that a process's private page now occupies a frame.
+     *
+     * @param	ppn	the frame.
+     * @param	owner	the owning process.
+     * @param	entry	the owner's page table entry for the page.
+     */
+    public void map(int ppn, VMProcess owner, TranslationEntry entry) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.owner == null && frame.sharers == 0 &&
+		       frame.copies == null);
+
+	frame.owner = owner;
+	frame.entry = entry;
+	frame.pid = owner.getPID();
+	frame.vpn = entry.vpn;
+	frame.used = entry.used;
+	frame.dirty = entry.dirty;
+	frame.lastReference = -1;
+	index.put(key(frame.pid, frame.vpn), ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Record that a process maps a shared frame at the specified virtual page.
+     *
+     * @param	ppn	the shared frame.
+     * @param	pid	the process mapping it.
+     * @param	vpn	the virtual page it is mapped at.
+     */
+    public void mapShared(int ppn, int pid, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.owner == null);
+
+	frame.sharers++;
+	index.put(key(pid, vpn), ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Add a process to the processes sharing a frame copy-on-write. If the
+     * frame holds a private page, its owner becomes the first sharer. The
+     * new sharer maps the frame at the same virtual page.
+     *
+     * @param	ppn	a frame holding a private or copy-on-write page.
+     * @param	process	the process to share the frame with.
+     */
+    public void shareCopy(int ppn, VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Frame frame = frames[ppn];
+	if (frame.owner != null) {
+	    frame.used |= frame.entry.used;
+	    frame.dirty |= frame.entry.dirty;
+
+	    frame.copies = new LinkedList<VMProcess>();
+	    frame.copies.add(frame.owner);
+	    frame.owner = null;
+	    frame.entry = null;
+	    frame.pid = -1;
+	}
+	Lib.assertTrue(frame.copies != null);
+
+	frame.copies.add(process);
+	index.put(key(process.getPID(), frame.vpn), ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Make the only remaining sharer of a copy-on-write frame its owner. The
+     * frame's dirty bit carries over to the new owner's page table entry.
+     *
+     * @param	ppn	a frame shared copy-on-write by one process.
+     * @param	owner	that process.
+     * @param	entry	its page table entry for the page.
+     */
+    public void makePrivate(int ppn, VMProcess owner, TranslationEntry entry) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.copies != null && frame.copies.size() == 1 &&
+		       frame.copies.getFirst() == owner);
+
+	frame.copies = null;
+	frame.owner = owner;
+	frame.entry = entry;
+	frame.pid = owner.getPID();
+	frame.lastReference = -1;
+	entry.dirty |= frame.dirty;
+	frame.dirty = entry.dirty;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Record that a frame caches a page of a mapped file. Processes mapping
+     * the page are added with <tt>mapShared()</tt>.
+     *
+     * @param	ppn		the frame.
+     * @param	file		the mapped file.
+     * @param	filePage	the page number within the file.
+     */
+    public void mapFile(int ppn, PageCache.MappedFile file, int filePage) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.owner == null && frame.file == null);
+
+	frame.file = file;
+	frame.filePage = filePage;
+	frame.used = true;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Record that a frame no longer caches a file page. Every process must
+     * already have unmapped it.
+     *
+     * @param	ppn	the frame.
+     */
+    public void unmapFile(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.file != null && frame.sharers == 0);
+
+	frame.file = null;
+	frame.filePage = -1;
+	frame.used = frame.dirty = false;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove a process's mapping of a virtual page. If the page was private,
+     * or this was the last process sharing it copy-on-write, the frame
+     * becomes unowned.
+     *
+     * @param	pid	the process.
+     * @param	vpn	the virtual page.
+     * @return	the frame the page occupied, or -1 if it was not resident.
+     */
+    public int unmap(int pid, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Integer ppn = index.remove(key(pid, vpn));
+	if (ppn != null) {
+	    Frame frame = frames[ppn];
+	    if (frame.owner != null) {
+		Lib.assertTrue(frame.pid == pid && frame.vpn == vpn);
+		frame.owner = null;
+		frame.entry = null;
+		frame.pid = frame.vpn = -1;
+		frame.used = frame.dirty = false;
+	    }
+	    else if (frame.copies != null) {
+		for (Iterator<VMProcess> i=frame.copies.iterator(); i.hasNext(); ) {
+		    if (i.next().getPID() == pid) {
+			i.remove();
+			break;
+		    }
+		}
+
+		if (frame.copies.isEmpty()) {
+		    frame.copies = null;
+		    frame.vpn = -1;
+		    frame.used = frame.dirty = false;
+		}
+	    }
+	    else {
+		Lib.assertTrue(frame.sharers > 0);
+		frame.sharers--;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return (ppn == null) ? -1 : ppn.intValue();
+    }
+
+    /**
+     * Find the frame holding a process's virtual page.
+     *
+     * @param	pid	the process.
+     * @param	vpn	the virtual page.
+     * @return	the frame, or -1 if the page is not resident.
+     */
+    public int lookup(int pid, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Integer ppn = index.get(key(pid, vpn));
+
+	Machine.interrupt().restore(intStatus);
+	return (ppn == null) ? -1 : ppn.intValue();
+    }
+
+    /**
+     * Return the state of a frame.
+     *
+     * @param	ppn	the frame.
+     * @return	the frame's entry in this table.
+     */
+    public Frame getFrame(int ppn) {
+	return frames[ppn];
+    }
+
+    /**
+     * Return the number of frames in this table.
+     *
+     * @return	the number of physical frames.
+     */
+    public int getNumFrames() {
+	return frames.length;
+    }
+
+    /**
+     * Prevent a frame from being evicted, for example while the kernel copies
+     * data to or from it. Pins nest.
+     *
+     * @param	ppn	the frame to pin.
+     */
+    public void pin(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	frames[ppn].pinCount++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release a pin taken by <tt>pin()</tt>.
+     *
+     * @param	ppn	the frame to unpin.
+     */
+    public void unpin(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(frames[ppn].pinCount > 0);
+	frames[ppn].pinCount--;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Merge used and dirty bits observed in a TLB entry into the mirror kept
+     * for its frame and into the owner's page table entry.
+     *
+     * @param	pid		the process the TLB entry belongs to.
+     * @param	tlbEntry	a valid TLB entry.
+     */
+    public void harvest(int pid, TranslationEntry tlbEntry) {
+	Frame frame = frames[tlbEntry.ppn];
+	if (frame.owner == null || frame.pid != pid ||
+	    frame.vpn != tlbEntry.vpn)
+	    return;
+
+	frame.used |= tlbEntry.used;
+	frame.dirty |= tlbEntry.dirty;
+	frame.entry.used |= tlbEntry.used;
+	frame.entry.dirty |= tlbEntry.dirty;
+    }
+
+    /**
+     * Return whether a pageable page has been referenced since its used bit
+     * was last cleared, and clear the bit. The bit is gathered from the
+     * frame's mirror, the page table entries mapping the page, and any TLB
+     * entry currently mapping the frame, and is cleared in all of them.
+     *
+     * @param	ppn	a frame holding a pageable page.
+     * @return	<tt>true</tt> if the page was used.
+     */
+    public boolean testAndClearUsed(int ppn) {
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.isPageable());
+
+	boolean used = frame.used;
+	if (frame.owner != null) {
+	    used |= frame.entry.used;
+	}
+	else if (frame.copies != null) {
+	    for (VMProcess process : frame.copies)
+		used |= process.clearUsed(frame.vpn);
+	}
+	else {
+	    used |= frame.file.testAndClearUsed(frame.filePage);
+	}
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.ppn == ppn && tlbEntry.used) {
+		if (frame.owner != null)
+		    harvest(frame.pid, tlbEntry);
+		used = true;
+
+		tlbEntry.used = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	frame.used = false;
+	if (frame.owner != null)
+	    frame.entry.used = false;
+	return used;
+    }
+
+    private static long key(int pid, int vpn) {
+	return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    private Frame[] frames;
+    private HashMap<Long, Integer> index = new HashMap<Long, Integer>();
+}
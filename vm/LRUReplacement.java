@@ -0,0 +1,55 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Approximate least-recently-used replacement. Each time used bits are
+ * sampled, every page found used is stamped with the current sample number
+ * and its bit is cleared; the victim is the page with the oldest stamp.
+ */
+public class LRUReplacement extends ReplacementPolicy {
+    /**
+     * Allocate a new LRU-approximation replacement policy.
+     */
+    public LRUReplacement() {
+    }
+
+    public void initialize(InvertedPageTable table) {
+	super.initialize(table);
+
+	lastUsed = new long[table.getNumFrames()];
+    }
+
+    public void pageLoaded(int ppn) {
+	lastUsed[ppn] = numSamples;
+    }
+
+    public void sample() {
+	numSamples++;
+
+	for (int ppn=0; ppn<lastUsed.length; ppn++) {
+	    if (table.getFrame(ppn).isPageable() &&
+		table.testAndClearUsed(ppn))
+		lastUsed[ppn] = numSamples;
+	}
+    }
+
+    public int selectVictim() {
+	sample();
+
+	int victim = -1;
+	for (int ppn=0; ppn<lastUsed.length; ppn++) {
+	    if (table.getFrame(ppn).isEvictable() &&
+		(victim == -1 || lastUsed[ppn] < lastUsed[victim]))
+		victim = ppn;
+	}
+
+	return victim;
+    }
+
+    private long[] lastUsed;
+    private long numSamples = 0;
+}
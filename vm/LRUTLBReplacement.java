@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Approximate least-recently-used TLB replacement. At every miss the used bit
+ * of each entry is shifted into an 8-bit history for that entry and then
+ * cleared; the entry with the smallest history is replaced.
+ */
+public class LRUTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new LRU-approximation TLB replacement policy.
+     */
+    public LRUTLBReplacement() {
+	history = new int[Machine.processor().getTLBSize()];
+    }
+
+    public void entryLoaded(int slot) {
+	history[slot] = 0x80;
+    }
+
+    public int selectVictim() {
+	Processor processor = Machine.processor();
+
+	int victim = 0;
+	for (int slot=0; slot<history.length; slot++) {
+	    history[slot] >>>= 1;
+	    if (processor.readTLBEntry(slot).used)
+		history[slot] |= 0x80;
+	    clearUsed(slot);
+
+	    if (history[slot] < history[victim])
+		victim = slot;
+	}
+
+	return victim;
+    }
+
+    private int[] history;
+}
@@ -0,0 +1,46 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Not-recently-used TLB replacement. Entries are ranked by their used bit,
+ * then their dirty bit, and one from the lowest class is replaced, so an
+ * entry referenced since the previous miss is kept whenever an unreferenced
+ * one exists. Used bits are cleared after each choice, which makes "recently"
+ * mean "since the last replacement". Ties are broken round-robin.
+ */
+public class NRUTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new NRU TLB replacement policy.
+     */
+    public NRUTLBReplacement() {
+    }
+
+    public int selectVictim() {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	int victim = -1, victimClass = 4;
+	for (int i=0; i<tlbSize; i++) {
+	    int slot = (hand+i) % tlbSize;
+	    TranslationEntry entry = processor.readTLBEntry(slot);
+
+	    int entryClass = (entry.used ? 2 : 0) + (entry.dirty ? 1 : 0);
+	    if (entryClass < victimClass) {
+		victim = slot;
+		victimClass = entryClass;
+	    }
+	}
+
+	for (int slot=0; slot<tlbSize; slot++)
+	    clearUsed(slot);
+
+	hand = (victim+1) % tlbSize;
+	return victim;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,283 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A kernel-wide cache of file pages for memory-mapped files. Every process
+ * that maps the same file shares one <tt>MappedFile</tt>, so each page of the
+ * file is read into one physical frame no matter how many processes map it,
+ * and a store by one process is seen by the others.
+ *
+ * <p>
+ * Pages are read lazily, one per fault. A page is dirty once any process has
+ * modified it; dirty pages are written back to the file when it is evicted,
+ * and all dirty pages are written back when a process unmaps the file. The
+ * cache reads and writes through an <tt>OpenFile</tt> of its own, so the file
+ * stays available after the descriptors used to map it are closed. A page that
+ * cannot be written back stays cached and dirty, and is tried again later.
+ *
+ * <p>
+ * The cache is not coherent with <tt>read()</tt> and <tt>write()</tt> on
+ * other descriptors. A cached page does not see bytes written to the file
+ * after it was read in, and writing the page back overwrites them. The
+ * length of the file is read again each time a process maps it, so a new
+ * mapping covers what was appended since.
+ *
+ * <p>
+ * All methods must be called with <tt>VMKernel.pagingLock</tt> held.
+ */
+public class PageCache {
+    /**
+     * Allocate a new page cache.
+     */
+    public PageCache() {
+    }
+
+    /**
+     * Return the mapped file for the named file, opening it if no process has
+     * it mapped, and add a process to its mappers.
+     *
+     * @param	name		the name of the file.
+     * @param	process		the process mapping the file.
+     * @param	firstVPN	the virtual page the file is mapped at.
+     * @return	the mapped file, or <tt>null</tt> if the file could not be
+     *		opened.
+     */
+    public MappedFile map(String name, VMProcess process, int firstVPN) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	MappedFile file = files.get(name);
+	if (file == null) {
+	    OpenFile openFile = UserKernel.openFileTable.open(name, false);
+	    if (openFile == null)
+		return null;
+
+	    file = new MappedFile(name, openFile);
+	    files.put(name, file);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tsharing mapped file " + name);
+
+	    int length = file.file.length();
+	    if (length >= 0)
+		file.length = length;
+	}
+
+	file.mappers.add(new Mapper(process, firstVPN));
+	return file;
+    }
+
+    /**
+     * A file mapped by one or more processes.
+     */
+    public class MappedFile {
+	private MappedFile(String name, OpenFile file) {
+	    this.name = name;
+	    this.file = file;
+	    length = file.length();
+	}
+
+	/**
+	 * Return the name of the file.
+	 *
+	 * @return	the name the file was mapped by.
+	 */
+	public String getName() {
+	    return name;
+	}
+
+	/**
+	 * Return the length of the file when it was last mapped.
+	 *
+	 * @return	the length of the file in bytes.
+	 */
+	public int getLength() {
+	    return length;
+	}
+
+	/**
+	 * Return the frame holding a page of the file, reading it in if it is
+	 * not cached. Bytes past the end of the file read as zero.
+	 *
+	 * @param	filePage	the page number within the file.
+	 * @return	the physical page number, or -1 if no frame was
+	 *		available.
+	 */
+	public int getPage(int filePage) {
+	    Integer cached = pages.get(filePage);
+	    if (cached != null)
+		return cached.intValue();
+
+	    int ppn = UserKernel.pageAllocator.allocatePage(null);
+	    if (ppn == -1)
+		return -1;
+
+	    byte[] memory = Machine.processor().getMemory();
+	    int amount = Math.max(0, file.read(filePage*pageSize, memory,
+					       ppn*pageSize, pageSize));
+	    Arrays.fill(memory, ppn*pageSize + amount, (ppn+1)*pageSize,
+			(byte) 0);
+
+	    Lib.debug(dbgVM, "\tread page " + filePage + " of " + name
+		      + " into ppn " + ppn);
+
+	    pages.put(filePage, ppn);
+	    VMKernel.invertedPageTable.mapFile(ppn, this, filePage);
+	    VMKernel.replacementPolicy.pageLoaded(ppn);
+
+	    return ppn;
+	}
+
+	/**
+	 * Remove a process from the mappers of this file. The process must
+	 * already have dropped its translations, reporting modified pages with
+	 * <tt>markDirty()</tt>. Dirty pages are written back, and if this was
+	 * the last mapper every cached page is freed and the file is closed.
+	 *
+	 * @param	process		the process unmapping the file.
+	 * @param	firstVPN	the virtual page the file was mapped at.
+	 */
+	public void unmap(VMProcess process, int firstVPN) {
+	    for (Iterator<Mapper> i=mappers.iterator(); i.hasNext(); ) {
+		Mapper mapper = i.next();
+		if (mapper.process == process && mapper.firstVPN == firstVPN) {
+		    i.remove();
+		    break;
+		}
+	    }
+
+	    flush();
+
+	    if (mappers.isEmpty()) {
+		for (Integer ppn : pages.values()) {
+		    VMKernel.invertedPageTable.unmapFile(ppn);
+		    UserKernel.pageAllocator.freePage(ppn);
+		}
+		pages.clear();
+
+		file.close();
+		files.remove(name);
+
+		Lib.debug(dbgVM, "\tclosed mapped file " + name);
+	    }
+	}
+
+	/**
+	 * Note that a process modified a page of this file.
+	 *
+	 * @param	filePage	the page number within the file.
+	 */
+	public void markDirty(int filePage) {
+	    dirty.set(filePage);
+	}
+
+	/**
+	 * Remove a cached page from every process mapping it and write it back
+	 * if it is dirty. The caller frees the frame. If the page cannot be
+	 * written back, it stays cached, and the processes fault it in again.
+	 *
+	 * @param	filePage	the cached page to evict.
+	 * @return	<tt>true</tt> if the page was evicted.
+	 */
+	boolean evictPage(int filePage) {
+	    int ppn = pages.get(filePage);
+
+	    for (Mapper mapper : mappers) {
+		if (mapper.process.dropPage(mapper.firstVPN + filePage))
+		    markDirty(filePage);
+	    }
+
+	    if (!writeBack(filePage, ppn))
+		return false;
+
+	    pages.remove(filePage);
+	    VMKernel.invertedPageTable.unmapFile(ppn);
+	    return true;
+	}
+
+	/**
+	 * Return whether any process has referenced a cached page since the
+	 * last call, clearing the used bits in their page tables.
+	 */
+	boolean testAndClearUsed(int filePage) {
+	    boolean used = false;
+
+	    for (Mapper mapper : mappers)
+		used |= mapper.process.clearUsed(mapper.firstVPN + filePage);
+
+	    return used;
+	}
+
+	private void flush() {
+	    for (int filePage = dirty.nextSetBit(0); filePage >= 0;
+		 filePage = dirty.nextSetBit(filePage+1))
+		writeBack(filePage, pages.get(filePage));
+	}
+
+	/**
+	 * Write a cached page back to the file if it is dirty. The page stays
+	 * dirty unless it was written in full.
+	 *
+	 * @return	<tt>true</tt> if the page is now clean.
+	 */
+	private boolean writeBack(int filePage, int ppn) {
+	    if (!dirty.get(filePage))
+		return true;
+
+	    int amount = Math.min(pageSize, length - filePage*pageSize);
+	    if (amount > 0) {
+		UserKernel.imageCache.invalidate(name);
+
+		byte[] memory = Machine.processor().getMemory();
+		if (file.write(filePage*pageSize, memory, ppn*pageSize,
+			       amount) != amount) {
+		    Lib.debug(dbgVM, "\tunable to write back page " + filePage
+			      + " of " + name);
+		    return false;
+		}
+
+		Lib.debug(dbgVM, "\twrote back page " + filePage + " of "
+			  + name);
+	    }
+
+	    dirty.clear(filePage);
+	    return true;
+	}
+
+	private String name;
+	private OpenFile file;
+	private int length;
+
+	/** Cached frames, indexed by page number within the file. */
+	private HashMap<Integer, Integer> pages = new HashMap<Integer, Integer>();
+	/** Set bits mark cached pages modified since last written back. */
+	private BitSet dirty = new BitSet();
+	private LinkedList<Mapper> mappers = new LinkedList<Mapper>();
+    }
+
+    private static class Mapper {
+	Mapper(VMProcess process, int firstVPN) {
+	    this.process = process;
+	    this.firstVPN = firstVPN;
+	}
+
+	final VMProcess process;
+	final int firstVPN;
+    }
+
+    /** Mapped files by file name. */
+    private HashMap<String, MappedFile> files =
+	new HashMap<String, MappedFile>();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,199 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A kernel thread that writes dirty pages to swap ahead of time, so that a
+ * page fault needing a frame usually finds a clean victim and does not have
+ * to wait for a swap write before it can read its own page in.
+ *
+ * <p>
+ * A frame is reclaimable if it is free, or holds a clean private page that
+ * could be evicted without being written. The daemon sleeps until the number
+ * of reclaimable frames drops below <tt>VMKernel.pageoutLowWater</tt>, then
+ * cleans dirty private pages in batches of <tt>VMKernel.pageoutBatch</tt>
+ * until <tt>VMKernel.pageoutHighWater</tt> frames are reclaimable or no dirty
+ * page is left. Each batch is written with a single <tt>swapOut()</tt>, so
+ * pages landing in consecutive slots go out in one request. Pages not
+ * referenced since the replacement policy last looked are cleaned first,
+ * since they are the likeliest victims and the least likely to be dirtied
+ * again. Cleaned pages stay resident and keep their swap slots.
+ *
+ * <p>
+ * A low watermark of 0 disables the daemon.
+ */
+public class PageoutDaemon {
+    /**
+     * Allocate a new pageout daemon. The thread is not started until
+     * <tt>start()</tt> is called.
+     *
+     * @param	table	the inverted page table whose frames to clean.
+     */
+    public PageoutDaemon(InvertedPageTable table) {
+	this.table = table;
+
+	int numFrames = table.getNumFrames();
+	lowWater = Config.getInteger("VMKernel.pageoutLowWater",
+				     Math.max(numFrames/8, 1));
+	highWater = Math.max(Config.getInteger("VMKernel.pageoutHighWater",
+					       numFrames/4),
+			     lowWater);
+	batchSize = Config.getInteger("VMKernel.pageoutBatch", 4);
+
+	Lib.assertTrue(lowWater >= 0 && highWater <= numFrames &&
+		       batchSize > 0);
+    }
+
+    /**
+     * Fork the daemon thread.
+     */
+    public void start() {
+	if (lowWater == 0)
+	    return;
+
+	KThread thread = new KThread(new Runnable() {
+		public void run() { pageout(); }
+	    });
+
+	thread.setName("pageout daemon").fork();
+    }
+
+    /**
+     * Wake the daemon if it is asleep and too few frames are reclaimable.
+     * Never blocks, so it may be called from an interrupt handler.
+     */
+    public void check() {
+	if (lowWater == 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!awake && getNumReclaimable() < lowWater) {
+	    awake = true;
+	    Machine.stats().numPageoutWakeups++;
+	    wakeup.V();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private void pageout() {
+	while (true) {
+	    wakeup.P();
+
+	    Lib.debug(dbgVM, "\tpageout daemon awake: " + getNumReclaimable()
+		      + " frames reclaimable");
+
+	    // take the lock a batch at a time, so faults can run in between
+	    boolean more = true;
+	    while (more) {
+		VMKernel.pagingLock.acquire();
+		more = getNumReclaimable() < highWater && cleanBatch() > 0;
+		VMKernel.pagingLock.release();
+	    }
+
+	    awake = false;
+	}
+    }
+
+    /**
+     * Write up to a batch of dirty private pages to swap and mark them
+     * clean. Must be called with <tt>VMKernel.pagingLock</tt> held.
+     *
+     * @return	the number of pages cleaned.
+     */
+    private int cleanBatch() {
+	int numFrames = table.getNumFrames();
+	int[] pids = new int[batchSize];
+	int[] vpns = new int[batchSize];
+	int[] ppns = new int[batchSize];
+	int count = 0;
+
+	// the first pass takes only pages not referenced lately
+	for (int pass=0; pass<2 && count<batchSize; pass++) {
+	    for (int i=0; i<numFrames && count<batchSize; i++) {
+		int ppn = (hand + i) % numFrames;
+		InvertedPageTable.Frame frame = table.getFrame(ppn);
+		if (!isDirty(frame) || contains(ppns, count, ppn))
+		    continue;
+
+		if (pass == 0 && (frame.used || frame.entry.used))
+		    continue;
+
+		pids[count] = frame.pid;
+		vpns[count] = frame.vpn;
+		ppns[count] = ppn;
+		count++;
+	    }
+	}
+
+	if (count == 0)
+	    return 0;
+
+	hand = (ppns[count-1] + 1) % numFrames;
+
+	// clear the bits first, so a store made during the write redirties
+	// the page
+	for (int i=0; i<count; i++) {
+	    InvertedPageTable.Frame frame = table.getFrame(ppns[i]);
+	    frame.dirty = false;
+	    frame.entry.dirty = false;
+
+	    Lib.debug(dbgVM, "\tcleaning pid " + pids[i] + " vpn " + vpns[i]
+		      + " in ppn " + ppns[i]);
+	}
+
+	VMKernel.swap.swapOut(pids, vpns, ppns, count);
+	Machine.stats().numPagesCleaned += count;
+
+	return count;
+    }
+
+    /**
+     * Return the number of frames that are free or hold a clean private
+     * page that could be evicted.
+     */
+    private int getNumReclaimable() {
+	int count = UserKernel.pageAllocator.getNumFreePages();
+
+	for (int ppn=0; ppn<table.getNumFrames(); ppn++) {
+	    InvertedPageTable.Frame frame = table.getFrame(ppn);
+	    if (frame.owner != null && frame.isEvictable() && !isDirty(frame))
+		count++;
+	}
+
+	return count;
+    }
+
+    /**
+     * Test whether a frame holds an evictable private page that would have
+     * to be written to swap if it were evicted now.
+     */
+    private static boolean isDirty(InvertedPageTable.Frame frame) {
+	return frame.owner != null && frame.isEvictable() &&
+	    (frame.dirty || frame.entry.dirty);
+    }
+
+    private static boolean contains(int[] ppns, int count, int ppn) {
+	for (int i=0; i<count; i++) {
+	    if (ppns[i] == ppn)
+		return true;
+	}
+
+	return false;
+    }
+
+    private InvertedPageTable table;
+
+    private int lowWater, highWater, batchSize;
+    /** Where the next scan for dirty pages starts. */
+    private int hand = 0;
+    /** Set while the daemon is cleaning, so it is not signalled twice. */
+    private boolean awake = false;
+    private Semaphore wakeup = new Semaphore(0);
+
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,62 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which resident page to evict when physical memory runs out. The VM
+ * kernel constructs the policy named by <tt>VMKernel.replacementPolicy</tt>
+ * and hands it the inverted page table, tells it when a page is loaded into a
+ * frame, and lets it sample reference bits at every context switch.
+ *
+ * <p>
+ * Policies only choose; the kernel performs the eviction. A policy must
+ * never return a frame whose <tt>isEvictable()</tt> test fails.
+ *
+ * @see	nachos.vm.InvertedPageTable
+ */
+public abstract class ReplacementPolicy {
+    /**
+     * Allocate a new replacement policy.
+     */
+    public ReplacementPolicy() {
+    }
+
+    /**
+     * Attach this policy to the inverted page table it chooses victims from.
+     * Called once, before any other method.
+     *
+     * @param	table	the inverted page table.
+     */
+    public void initialize(InvertedPageTable table) {
+	this.table = table;
+    }
+
+    /**
+     * Note that a private page has just been loaded into a frame.
+     *
+     * @param	ppn	the frame.
+     */
+    public void pageLoaded(int ppn) {
+    }
+
+    /**
+     * Sample the used bits of resident pages. Called at every context switch,
+     * after the outgoing process's TLB has been written back. Policies that
+     * track reference history over time update it here.
+     */
+    public void sample() {
+    }
+
+    /**
+     * Choose a frame to evict.
+     *
+     * @return	an evictable frame, or -1 if every frame is pinned or shared.
+     */
+    public abstract int selectVictim();
+
+    /** The inverted page table this policy chooses from. */
+    protected InvertedPageTable table;
+}
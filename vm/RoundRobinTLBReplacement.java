@@ -0,0 +1,26 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Replaces TLB entries in turn, ignoring how they are used.
+ */
+public class RoundRobinTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new round-robin TLB replacement policy.
+     */
+    public RoundRobinTLBReplacement() {
+    }
+
+    public int selectVictim() {
+	int slot = next;
+	next = (next+1) % Machine.processor().getTLBSize();
+
+	return slot;
+    }
+
+    private int next = 0;
+}
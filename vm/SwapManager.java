@@ -0,0 +1,451 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Backing store for evicted pages. All processes share a single swap file,
+ * opened through <tt>ThreadedKernel.fileSystem</tt> the first time a page is
+ * written out. The file is divided into page-sized slots; a bitmap records
+ * which slots are in use, and an index maps each swapped (process ID, virtual
+ * page) pair to its slot. The file grows whenever a write lands beyond its
+ * current end.
+ *
+ * <p>
+ * A page keeps its slot after it is read back in, so a page that is evicted
+ * again without having been modified need not be written a second time. Clean
+ * pages that were never swapped are not written at all: they are re-read from
+ * the executable or zero-filled on their next fault. Pages evicted together
+ * are given consecutive slots where possible, and each run of consecutive
+ * slots is written with a single <tt>write()</tt>. The runs of a batch are
+ * all started with <tt>writeAsync()</tt> or <tt>readAsync()</tt> before any
+ * is waited for, so a file system that overlaps requests charges the latency
+ * of a batch once rather than once per run.
+ *
+ * <p>
+ * A forked child shares its parent's slots until either of them writes the
+ * page out again, so <tt>fork()</tt> copies no swap data. Each slot held by
+ * more than one page carries a reference count.
+ *
+ * <p>
+ * If <tt>VMKernel.compressedSwapSize</tt> is set, pages are first offered to
+ * a <tt>CompressedSwap</tt> of that many bytes, and only pages that do not
+ * fit there are written to the file. Slots are numbered the same way in both
+ * tiers.
+ *
+ * <p>
+ * Callers must hold <tt>VMKernel.pagingLock</tt>, so that a page is never
+ * read back while it is still being written.
+ */
+public class SwapManager {
+    /**
+     * Allocate a new swap manager. The swap file is not created until a page
+     * is first written to it.
+     *
+     * @param	fileName	the name of the swap file.
+     * @param	compressedSize	the budget of the compressed tier in bytes,
+     *				or 0 to write every page to the file.
+     */
+    public SwapManager(String fileName, int compressedSize) {
+	this.fileName = fileName;
+
+	if (compressedSize > 0)
+	    compressed = new CompressedSwap(compressedSize);
+    }
+
+    /**
+     * Test whether a page has a copy in swap.
+     *
+     * @param	pid	the process owning the page.
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page has a swap slot.
+     */
+    public boolean contains(int pid, int vpn) {
+	return slots.containsKey(key(pid, vpn));
+    }
+
+    /**
+     * Return the swap slot holding a page.
+     *
+     * @param	pid	the process owning the page.
+     * @param	vpn	the virtual page.
+     * @return	the slot, or -1 if the page is not in swap.
+     */
+    public int getSlot(int pid, int vpn) {
+	Integer slot = slots.get(key(pid, vpn));
+	return (slot == null) ? -1 : slot.intValue();
+    }
+
+    /**
+     * Give a page of another process the same swapped copy as a page of this
+     * one. The slot is shared until either page is written out again.
+     *
+     * @param	pid	the process owning the swapped page.
+     * @param	copyPID	the process receiving a copy.
+     * @param	vpn	the virtual page, the same in both processes.
+     */
+    public void share(int pid, int copyPID, int vpn) {
+	Integer slot = slots.get(key(pid, vpn));
+	if (slot == null)
+	    return;
+
+	Lib.assertTrue(!contains(copyPID, vpn));
+	slots.put(key(copyPID, vpn), slot);
+
+	Integer references = sharedSlots.get(slot);
+	sharedSlots.put(slot, (references == null) ? 2 : references+1);
+    }
+
+    /**
+     * Read the swapped copies of a run of consecutive virtual pages into
+     * physical frames. The pages must occupy consecutive slots. Pages held
+     * by the compressed tier are decompressed, and each run of the others is
+     * read from the file with a single request. Pages keep their slots, so each frame is a clean
+     * copy of the swapped contents.
+     *
+     * @param	pid	the process owning the pages.
+     * @param	vpn	the first virtual page of the run.
+     * @param	ppns	the frame to read each page into.
+     * @param	count	the number of pages in the run.
+     * @return	<tt>true</tt> if the pages were in swap and have been read.
+     */
+    public boolean swapIn(int pid, int vpn, int[] ppns, int count) {
+	int slot = getSlot(pid, vpn);
+	if (slot == -1)
+	    return false;
+
+	for (int i=1; i<count; i++)
+	    Lib.assertTrue(getSlot(pid, vpn+i) == slot+i);
+
+	byte[] memory = Machine.processor().getMemory();
+	RunRead[] reads = new RunRead[count];
+	int numReads = 0;
+
+	for (int start=0; start<count; ) {
+	    if (compressed != null &&
+		compressed.load(slot+start, memory, ppns[start]*pageSize)) {
+		start++;
+		continue;
+	    }
+
+	    int end = start+1;
+	    while (end < count &&
+		   (compressed == null || !compressed.contains(slot+end)))
+		end++;
+
+	    reads[numReads++] = new RunRead(slot+start, ppns, start, end-start);
+	    start = end;
+	}
+
+	for (int i=0; i<numReads; i++)
+	    reads[i].finish();
+
+	Machine.stats().numSwapIns += count;
+
+	Lib.debug(dbgVM, "\tswap in: pid " + pid + " vpn " + vpn + " ("
+		  + count + " pages) <- slot " + slot);
+	return true;
+    }
+
+    /**
+     * Write a batch of evicted pages to swap. Pages that already have a slot
+     * of their own are rewritten in place; the others, including pages whose
+     * slot is shared, are given a run of consecutive free slots. Pages that
+     * fit in the compressed tier are kept there; each run of consecutive
+     * slots among the rest is written to the file with one request.
+     *
+     * @param	pids	the owning process of each page.
+     * @param	vpns	the virtual page number of each page.
+     * @param	ppns	the frame holding each page.
+     * @param	count	the number of pages in the batch.
+     */
+    public void swapOut(int[] pids, int[] vpns, int[] ppns, int count) {
+	if (count == 0)
+	    return;
+
+	int numNew = 0;
+	for (int i=0; i<count; i++) {
+	    Long key = key(pids[i], vpns[i]);
+	    Integer slot = slots.get(key);
+
+	    // rewriting a shared slot would change the other pages' copies
+	    if (slot != null && sharedSlots.containsKey(slot)) {
+		slots.remove(key);
+		release(slot);
+		slot = null;
+	    }
+
+	    if (slot == null)
+		numNew++;
+	}
+
+	int nextNew = allocateSlots(numNew);
+
+	byte[] memory = Machine.processor().getMemory();
+
+	long[] order = new long[count];
+	int numFile = 0;
+	for (int i=0; i<count; i++) {
+	    Long key = key(pids[i], vpns[i]);
+	    Integer slot = slots.get(key);
+	    if (slot == null) {
+		slot = nextNew++;
+		slots.put(key, slot);
+	    }
+
+	    if (storeCompressed(slot, ppns[i]))
+		continue;
+
+	    // sort by slot, remembering the batch index in the low bits
+	    order[numFile++] = ((long) slot << 32) | i;
+	}
+	Arrays.sort(order, 0, numFile);
+
+	if (numFile > 0)
+	    openFile();
+
+	PendingIO[] writes = new PendingIO[numFile];
+	int[] lengths = new int[numFile];
+	int numWrites = 0;
+
+	for (int start=0; start<numFile; ) {
+	    int firstSlot = (int) (order[start] >> 32);
+
+	    int end = start+1;
+	    while (end < numFile &&
+		   (int) (order[end] >> 32) == firstSlot + end-start)
+		end++;
+
+	    int length = (end-start)*pageSize;
+	    PendingIO write = new PendingIO();
+
+	    if (end-start == 1) {
+		int ppn = ppns[(int) order[start]];
+		file.writeAsync(firstSlot*pageSize, memory, ppn*pageSize,
+				pageSize, write);
+	    }
+	    else {
+		byte[] buffer = new byte[length];
+		for (int i=start; i<end; i++) {
+		    int ppn = ppns[(int) order[i]];
+		    System.arraycopy(memory, ppn*pageSize,
+				     buffer, (i-start)*pageSize, pageSize);
+		}
+		file.writeAsync(firstSlot*pageSize, buffer, 0, length, write);
+	    }
+
+	    writes[numWrites] = write;
+	    lengths[numWrites++] = length;
+
+	    Machine.stats().numSwapOuts += end-start;
+	    Machine.stats().numSwapWrites++;
+
+	    Lib.debug(dbgVM, "\tswap out: " + (end-start) + " pages -> slot "
+		      + firstSlot);
+	    start = end;
+	}
+
+	for (int i=0; i<numWrites; i++) {
+	    Lib.assertTrue(writes[i].waitUntilDone() == lengths[i],
+			   "swap write failed");
+	}
+    }
+
+    /**
+     * Write a page shared copy-on-write by several processes to a single new
+     * slot, in either tier, which all of them then share. Any slots they held for the page
+     * before are released.
+     *
+     * @param	pids	the processes sharing the page.
+     * @param	vpn	the virtual page, the same in every process.
+     * @param	ppn	the frame holding the page.
+     */
+    public void swapOutShared(int[] pids, int vpn, int ppn) {
+	for (int i=0; i<pids.length; i++)
+	    free(pids[i], vpn);
+
+	int slot = allocateSlots(1);
+	if (!storeCompressed(slot, ppn)) {
+	    openFile();
+
+	    int amount = file.write(slot*pageSize,
+				    Machine.processor().getMemory(),
+				    ppn*pageSize, pageSize);
+	    Lib.assertTrue(amount == pageSize, "swap write failed");
+
+	    Machine.stats().numSwapOuts++;
+	    Machine.stats().numSwapWrites++;
+	}
+
+	for (int i=0; i<pids.length; i++)
+	    slots.put(key(pids[i], vpn), slot);
+	if (pids.length > 1)
+	    sharedSlots.put(slot, pids.length);
+
+	Lib.debug(dbgVM, "\tswap out: shared vpn " + vpn + " ("
+		  + pids.length + " processes) -> slot " + slot);
+    }
+
+    /**
+     * Release the swap slot of a page, if it has one.
+     *
+     * @param	pid	the process owning the page.
+     * @param	vpn	the virtual page.
+     */
+    public void free(int pid, int vpn) {
+	Integer slot = slots.remove(key(pid, vpn));
+	if (slot != null)
+	    release(slot);
+    }
+
+    /**
+     * Return the number of slots in use.
+     *
+     * @return	the number of pages held in swap.
+     */
+    public int getNumSlotsUsed() {
+	return used.cardinality();
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	if (file != null) {
+	    file.close();
+	    ThreadedKernel.fileSystem.remove(fileName);
+	    file = null;
+	}
+    }
+
+    /**
+     * Drop one reference to a slot, freeing it when none remain.
+     */
+    private void release(int slot) {
+	Integer references = sharedSlots.remove(slot);
+	if (references == null) {
+	    used.clear(slot);
+	    if (compressed != null)
+		compressed.remove(slot);
+	}
+	else if (references > 2) {
+	    sharedSlots.put(slot, references-1);
+	}
+    }
+
+    /**
+     * Offer a page to the compressed tier. If it is not taken, any older
+     * copy there is dropped, so the file holds the only copy.
+     *
+     * @return	<tt>true</tt> if the compressed tier now holds the page.
+     */
+    private boolean storeCompressed(int slot, int ppn) {
+	if (compressed == null ||
+	    !compressed.store(slot, Machine.processor().getMemory(),
+			      ppn*pageSize))
+	    return false;
+
+	Machine.stats().numSwapOuts++;
+	Machine.stats().numSwapCompressed++;
+
+	Lib.debug(dbgVM, "\tswap out: slot " + slot + " compressed ("
+		  + compressed.getBytesUsed() + " bytes used)");
+	return true;
+    }
+
+    /**
+     * A read of a run of consecutive slots from the swap file with one
+     * request. A single page is read straight into its frame; a longer run is
+     * read into a buffer and copied out to its frames by <tt>finish()</tt>.
+     */
+    private class RunRead extends PendingIO {
+	RunRead(int firstSlot, int[] ppns, int first, int count) {
+	    this.ppns = ppns;
+	    this.first = first;
+	    this.count = count;
+
+	    byte[] memory = Machine.processor().getMemory();
+	    if (count == 1) {
+		file.readAsync(firstSlot*pageSize, memory,
+			       ppns[first]*pageSize, pageSize, this);
+	    }
+	    else {
+		buffer = new byte[count*pageSize];
+		file.readAsync(firstSlot*pageSize, buffer, 0, buffer.length,
+			       this);
+	    }
+	}
+
+	/**
+	 * Wait for the read to complete, and copy the pages to their frames.
+	 */
+	void finish() {
+	    Lib.assertTrue(waitUntilDone() == count*pageSize,
+			   "swap read failed");
+
+	    if (buffer != null) {
+		byte[] memory = Machine.processor().getMemory();
+		for (int i=0; i<count; i++)
+		    System.arraycopy(buffer, i*pageSize,
+				     memory, ppns[first+i]*pageSize, pageSize);
+	    }
+	}
+
+	private int[] ppns;
+	private int first, count;
+	private byte[] buffer = null;
+    }
+
+    private void openFile() {
+	if (file == null) {
+	    file = ThreadedKernel.fileSystem.open(fileName, true);
+	    Lib.assertTrue(file != null, "unable to open swap file");
+	}
+    }
+
+    /**
+     * Mark a run of <i>numSlots</i> consecutive free slots as used, extending
+     * the file if no such run exists below its end.
+     *
+     * @return	the first slot of the run.
+     */
+    private int allocateSlots(int numSlots) {
+	int start = used.nextClearBit(0);
+	while (numSlots > 0) {
+	    int end = used.nextSetBit(start);
+	    if (end == -1 || end - start >= numSlots)
+		break;
+
+	    start = used.nextClearBit(end);
+	}
+
+	used.set(start, start+numSlots);
+	return start;
+    }
+
+    private static Long key(int pid, int vpn) {
+	return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    private String fileName;
+    private OpenFile file = null;
+    /** The compressed tier, or <tt>null</tt> if it is disabled. */
+    private CompressedSwap compressed = null;
+
+    /** Set bits mark slots holding a page. */
+    private BitSet used = new BitSet();
+    /** The slot of each swapped page, by (process ID, virtual page). */
+    private HashMap<Long, Integer> slots = new HashMap<Long, Integer>();
+    /** The number of pages sharing each slot held by more than one. */
+    private HashMap<Integer, Integer> sharedSlots =
+	new HashMap<Integer, Integer>();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,56 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which TLB entry to replace on a TLB miss. Each process has its own
+ * instance, of the class named by <tt>VMProcess.tlbReplacement</tt>, so that
+ * any history a policy keeps about the TLB is saved and restored with the
+ * process's TLB contents.
+ *
+ * <p>
+ * Policies are consulted only when every TLB entry is valid, and only after
+ * the used and dirty bits of every entry have been written back to the page
+ * table, so they may clear those bits in the TLB freely.
+ */
+public abstract class TLBReplacement {
+    /**
+     * Allocate a new TLB replacement policy.
+     */
+    public TLBReplacement() {
+    }
+
+    /**
+     * Note that a translation has just been loaded into a TLB entry.
+     *
+     * @param	slot	the TLB entry.
+     */
+    public void entryLoaded(int slot) {
+    }
+
+    /**
+     * Choose a TLB entry to replace.
+     *
+     * @return	the number of the entry to replace.
+     */
+    public abstract int selectVictim();
+
+    /**
+     * Clear the used bit of a TLB entry, so that a later miss can tell
+     * whether it was referenced in between.
+     *
+     * @param	slot	the TLB entry.
+     */
+    protected static void clearUsed(int slot) {
+	Processor processor = Machine.processor();
+
+	TranslationEntry entry = processor.readTLBEntry(slot);
+	if (entry.valid && entry.used) {
+	    entry.used = false;
+	    processor.writeTLBEntry(slot, entry);
+	}
+    }
+}
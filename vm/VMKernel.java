@@ -17,10 +17,47 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the inverted page table, the page
+     * replacement policy, the swap manager, the working set manager and the
+     * pageout daemon, registers a reclaim handler that evicts pages when
+     * physical memory runs out, and has the alarm sample working sets and
+     * check on the daemon on every timer interrupt.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+
+	String policyName = Config.getString("VMKernel.replacementPolicy",
+					     "nachos.vm.ClockReplacement");
+	replacementPolicy = (ReplacementPolicy) Lib.constructObject(policyName);
+	replacementPolicy.initialize(invertedPageTable);
+
+	pageCache = new PageCache();
+	swap = new SwapManager(Config.getString("VMKernel.swapFile",
+						"nachos.swap"),
+			       Config.getInteger("VMKernel.compressedSwapSize",
+						 0));
+	pagingLock = new Lock();
+
+	workingSets = new WorkingSetManager(invertedPageTable);
+	pageoutDaemon = new PageoutDaemon(invertedPageTable);
+	alarm.addTimerHandler(new Runnable() {
+		public void run() {
+		    workingSets.sample();
+		    pageoutDaemon.check();
+		}
+	    });
+
+	pageAllocator.addReclaimHandler(
+	    new PhysicalPageAllocator.ReclaimHandler() {
+		public void reclaim(int numPages) {
+		    evictPages(numPages);
+		}
+	    });
+
+	pageoutDaemon.start();
     }
 
     /**
@@ -41,9 +78,132 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Evict up to <i>numPages</i> pages, and return their frames to the page
+     * allocator. Pages the working set manager can spare go first; the rest
+     * are chosen by the replacement policy. Dirty private victims
+     * are written to swap together, so that adjacent slots go out in one
+     * request; dirty pages of mapped files are written back to the file.
+     *
+     * @param	numPages	the number of frames wanted.
+     */
+    private static void evictPages(int numPages) {
+	boolean held = pagingLock.isHeldByCurrentThread();
+	if (!held)
+	    pagingLock.acquire();
+
+	int[] pids = new int[numPages];
+	int[] vpns = new int[numPages];
+	int[] ppns = new int[numPages];
+	int[] victims = new int[numPages];
+	int numVictims = 0, numDirty = 0;
+
+	while (numVictims < numPages) {
+	    int ppn = workingSets.selectVictim();
+	    if (ppn == -1)
+		ppn = replacementPolicy.selectVictim();
+	    if (ppn == -1)
+		break;
+
+	    InvertedPageTable.Frame frame = invertedPageTable.getFrame(ppn);
+	    Lib.assertTrue(frame.isEvictable());
+
+	    // file pages go back to their file rather than to swap; a page
+	    // that cannot be written back stays, and the policy would only
+	    // choose it again
+	    if (frame.file != null) {
+		if (!frame.file.evictPage(frame.filePage))
+		    break;
+
+		victims[numVictims++] = ppn;
+		continue;
+	    }
+
+	    // a page shared copy-on-write is saved once for all its sharers
+	    if (frame.copies != null) {
+		evictCopy(frame);
+		victims[numVictims++] = ppn;
+		continue;
+	    }
+
+	    int pid = frame.pid, vpn = frame.vpn;
+	    workingSets.pageEvicted(frame);
+	    if (frame.owner.evictPage(vpn)) {
+		pids[numDirty] = pid;
+		vpns[numDirty] = vpn;
+		ppns[numDirty] = frame.ppn;
+		numDirty++;
+	    }
+
+	    Lib.debug(dbgVM, "\tevicted pid " + pid + " vpn " + vpn
+		      + " from ppn " + frame.ppn);
+	    victims[numVictims++] = frame.ppn;
+	}
+
+	swap.swapOut(pids, vpns, ppns, numDirty);
+	Machine.stats().numDirtyEvictions += numDirty;
+
+	for (int i=0; i<numVictims; i++)
+	    pageAllocator.freePage(victims[i]);
+
+	if (!held)
+	    pagingLock.release();
+
+	pageoutDaemon.check();
+    }
+
+    /**
+     * Evict a frame shared copy-on-write. Every sharer drops its translation,
+     * and a modified page is written once to a swap slot they all share.
+     */
+    private static void evictCopy(InvertedPageTable.Frame frame) {
+	int vpn = frame.vpn;
+	boolean dirty = frame.dirty;
+
+	VMProcess[] sharers = frame.copies.toArray(new VMProcess[0]);
+	int[] pids = new int[sharers.length];
+	for (int i=0; i<sharers.length; i++) {
+	    pids[i] = sharers[i].getPID();
+	    sharers[i].dropCopy(vpn);
+	}
+
+	// a clean page is still in the sharers' common swap slot or executable
+	if (dirty)
+	    swap.swapOutShared(pids, vpn, frame.ppn);
+
+	Lib.debug(dbgVM, "\tevicted shared vpn " + vpn + " from ppn "
+		  + frame.ppn);
+    }
+
+    /** Globally accessible reference to the inverted page table. */
+    public static InvertedPageTable invertedPageTable;
+
+    /** Globally accessible reference to the mapped file page cache. */
+    public static PageCache pageCache;
+
+    /** Globally accessible reference to the swap manager. */
+    public static SwapManager swap;
+
+    /** Globally accessible reference to the working set manager. */
+    public static WorkingSetManager workingSets;
+
+    /** Globally accessible reference to the pageout daemon. */
+    public static PageoutDaemon pageoutDaemon;
+
+    /**
+     * Serializes page faults, evictions and swap I/O, so that a page is never
+     * faulted back in while it is on its way out.
+     */
+    public static Lock pagingLock;
+
+    /** Globally accessible reference to the page replacement policy. */
+    public static ReplacementPolicy replacementPolicy;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
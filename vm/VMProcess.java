@@ -5,6 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -14,40 +18,826 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	String policyName = Config.getString("VMProcess.tlbReplacement",
+					     "nachos.vm.LRUTLBReplacement");
+	tlbPolicy = (TLBReplacement) Lib.constructObject(policyName);
+	savedTLB = new int[Machine.processor().getTLBSize()];
+	Arrays.fill(savedTLB, -1);
     }
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The used and dirty bits in the
+     * TLB are written back, and the virtual pages the TLB maps are remembered
+     * so that <tt>restoreState()</tt> can reload them.
      */
     public void saveState() {
 	super.saveState();
+
+	syncTLB();
+	VMKernel.replacementPolicy.sample();
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    savedTLB[i] = entry.valid ? entry.vpn : -1;
+	}
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. Each TLB entry saved by
+     * <tt>saveState()</tt> is reloaded from the page table if its page is
+     * still resident, so the process does not start with a cold TLB; entries
+     * for pages evicted in the meantime are left invalid.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    int vpn = savedTLB[i];
+	    if (vpn != -1 && pageTable[vpn].valid)
+		processor.writeTLBEntry(i, pageTable[vpn]);
+	    else
+		processor.writeTLBEntry(i, invalidEntry);
+	}
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Every entry starts out invalid; <tt>handlePageFault()</tt>
+     * fills them in on first touch.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	image = UserKernel.imageCache.acquire(executableName, executableLength);
+
+	initPageTable();
+	VMKernel.workingSets.register(this);
+	return true;
+    }
+
+    /**
+     * Allocate the page table and its companion arrays, with every page
+     * invalid and read-only sections marked as such.
+     */
+    private void initPageTable() {
+	pageTable = new TranslationEntry[numPages];
+	sharedPages = new boolean[numPages];
+	pageSections = new CoffSection[numPages];
+	prefetched = new boolean[numPages];
+	pageFiles = new Mapping[numPages];
+	copyOnWrite = new boolean[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgVM, "\tdeferring " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		pageTable[vpn].readOnly = section.isReadOnly();
+		pageSections[vpn] = section;
+	    }
+	}
+    }
+
+    /**
+     * Share <i>parent</i>'s address space with this new process copy-on-write.
+     * Every resident private page of the parent is mapped into the child at
+     * the same frame, and marked read-only in both, so that the first write
+     * by either process takes a read-only exception and copies the page.
+     * Swapped pages share the parent's swap slots. Nothing is copied here.
+     * Files the parent has mapped are mapped by this process too, at the same
+     * addresses and under the same descriptors, through the page cache.
+     *
+     * @param	parent	the process being forked.
+     * @return	<tt>true</tt>.
+     */
+    protected boolean copyAddressSpace(UserProcess parent) {
+	VMProcess source = (VMProcess) parent;
+
+	image = UserKernel.imageCache.acquire(source.image);
+	initPageTable();
+
+	VMKernel.pagingLock.acquire();
+
+	// the parent is running, so collect the dirty bits in the TLB first
+	source.syncTLB();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    VMKernel.swap.share(source.pid, pid, vpn);
+
+	    // shared pages are cheap to fault in again from the image
+	    TranslationEntry entry = source.pageTable[vpn];
+	    if (!entry.valid || source.sharedPages[vpn])
+		continue;
+
+	    if (!source.copyOnWrite[vpn]) {
+		entry.readOnly = true;
+		source.copyOnWrite[vpn] = true;
+	    }
+
+	    VMKernel.invertedPageTable.shareCopy(entry.ppn, this);
+
+	    pageTable[vpn].ppn = entry.ppn;
+	    pageTable[vpn].valid = true;
+	    pageTable[vpn].readOnly = true;
+	    copyOnWrite[vpn] = true;
+	}
+
+	// the pages are faulted in from the frames the parent shares
+	for (Map.Entry<Integer, Mapping> parentMapping :
+		 source.mappings.entrySet()) {
+	    Mapping mapping = parentMapping.getValue();
+	    PageCache.MappedFile file =
+		VMKernel.pageCache.map(mapping.file.getName(), this,
+				       mapping.firstVPN);
+	    Lib.assertTrue(file == mapping.file);
+
+	    growAddressSpace(mapping.firstVPN + mapping.numPages);
+	    for (int i=0; i<mapping.numPages; i++)
+		pageFiles[mapping.firstVPN+i] = mapping;
+
+	    mappings.put(parentMapping.getKey(), mapping);
+	}
+
+	// reload the parent's TLB entries that are now read-only
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && source.copyOnWrite[tlbEntry.vpn])
+		processor.writeTLBEntry(i, source.pageTable[tlbEntry.vpn]);
+	}
+
+	VMKernel.pagingLock.release();
+
+	VMKernel.workingSets.register(this);
+
+	Lib.debug(dbgVM, "\tforked pid " + source.pid + " -> " + pid);
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	VMKernel.workingSets.unregister(this);
+
+	VMKernel.pagingLock.acquire();
+
+	for (Mapping mapping : mappings.values())
+	    unmapFile(mapping);
+	mappings.clear();
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (copyOnWrite[vpn])
+		releaseCopy(vpn);
+	    else if (pageTable[vpn].valid)
+		VMKernel.invertedPageTable.unmap(pid, vpn);
+
+	    VMKernel.swap.free(pid, vpn);
+	}
+
 	super.unloadSections();
-    }    
+
+	VMKernel.pagingLock.release();
+    }
+
+    /**
+     * Translate a virtual page for a kernel access to this process's memory,
+     * faulting the page in first if it is not resident, and copying it first
+     * if it is shared copy-on-write and the kernel will write it. The frame
+     * is pinned until <tt>releaseVPN()</tt>, so that it cannot be evicted
+     * while the kernel copies to or from it, even if the copy blocks.
+     */
+    protected TranslationEntry translateVPN(int vpn, boolean writing) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	boolean held = VMKernel.pagingLock.isHeldByCurrentThread();
+	if (!held)
+	    VMKernel.pagingLock.acquire();
+
+	boolean resident = pageTable[vpn].valid || handlePageFault(vpn);
+	if (resident && writing && copyOnWrite[vpn])
+	    resident = breakCopy(vpn);
+
+	TranslationEntry entry = null;
+	if (resident) {
+	    entry = super.translateVPN(vpn, writing);
+	    if (entry != null) {
+		VMKernel.invertedPageTable.pin(entry.ppn);
+		checkReadahead(vpn);
+	    }
+	}
+
+	if (!held)
+	    VMKernel.pagingLock.release();
+
+	return entry;
+    }
+
+    /**
+     * Unpin the frame pinned by <tt>translateVPN()</tt>.
+     */
+    protected void releaseVPN(int vpn) {
+	VMKernel.invertedPageTable.unpin(pageTable[vpn].ppn);
+    }
+
+    /**
+     * Make a virtual page resident. Read-only COFF pages are taken from the
+     * shared executable image. Other pages are read back from swap if they
+     * were written there; otherwise COFF pages are read into a private frame,
+     * and bss, stack and argument pages are zero-filled.
+     *
+     * <p>
+     * A fault on the page just past the previous fault's pages continues a
+     * sequential stream, and the following pages from the same swap run or
+     * COFF section are read in the same request. The readahead window grows
+     * when those pages are used and halves when they are evicted unused.
+     *
+     * @param	vpn	the virtual page that faulted.
+     * @return	<tt>true</tt> if the page is now resident.
+     */
+    protected boolean handlePageFault(int vpn) {
+	boolean held = VMKernel.pagingLock.isHeldByCurrentThread();
+	if (!held)
+	    VMKernel.pagingLock.acquire();
+
+	boolean resident = pageTable[vpn].valid || loadPage(vpn);
+
+	if (!held)
+	    VMKernel.pagingLock.release();
+
+	return resident;
+    }
+
+    private boolean loadPage(int vpn) {
+	CoffSection section = pageSections[vpn];
+
+	Machine.stats().numPageFaults++;
+	VMKernel.workingSets.pageFault(this, vpn);
+
+	if (pageFiles[vpn] != null) {
+	    Mapping mapping = pageFiles[vpn];
+	    int ppn = mapping.file.getPage(vpn - mapping.firstVPN);
+	    if (ppn == -1) {
+		Lib.debug(dbgVM, "\tno physical page for vpn " + vpn);
+		return false;
+	    }
+
+	    Lib.debug(dbgVM, "\tpage fault: vpn " + vpn + " -> file ppn "
+		      + ppn);
+
+	    sharedPages[vpn] = true;
+	    mapPage(vpn, ppn);
+	    return true;
+	}
+
+	if (section != null && section.isReadOnly()) {
+	    int ppn = image.getPage(section, vpn - section.getFirstVPN());
+	    if (ppn == -1) {
+		Lib.debug(dbgVM, "\tno physical page for vpn " + vpn);
+		return false;
+	    }
+
+	    Lib.debug(dbgVM, "\tpage fault: vpn " + vpn + " -> shared ppn "
+		      + ppn);
+
+	    sharedPages[vpn] = true;
+	    mapPage(vpn, ppn);
+	    return true;
+	}
+
+	int window = (vpn == nextSequentialVPN) ?
+	    Math.min(readaheadWindow, maxReadahead) : 0;
+	int[] ppns = new int[1 + countReadahead(vpn, window)];
+
+	ppns[0] = UserKernel.pageAllocator.allocatePage(this);
+	if (ppns[0] == -1) {
+	    Lib.debug(dbgVM, "\tno physical page for vpn " + vpn);
+	    return false;
+	}
+
+	// readahead only uses frames that can be had; it never fails a fault
+	int count = 1;
+	while (count < ppns.length) {
+	    int ppn = UserKernel.pageAllocator.allocatePage(this);
+	    if (ppn == -1)
+		break;
+	    ppns[count++] = ppn;
+	}
+
+	if (!VMKernel.swap.swapIn(pid, vpn, ppns, count)) {
+	    if (section instanceof CachedCoff.Section) {
+		int spn = vpn - section.getFirstVPN();
+		((CachedCoff.Section) section).loadPages(spn, ppns, count);
+	    }
+	    else if (section != null) {
+		for (int i=0; i<count; i++)
+		    section.loadPage(vpn+i - section.getFirstVPN(), ppns[i]);
+	    }
+	    else {
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, ppns[0]*pageSize, (ppns[0]+1)*pageSize,
+			    (byte) 0);
+	    }
+	}
+
+	Lib.debug(dbgVM, "\tpage fault: vpn " + vpn + " -> ppn " + ppns[0]
+		  + ((count > 1) ? " (+" + (count-1) + " read ahead)" : ""));
+
+	for (int i=0; i<count; i++) {
+	    mapPage(vpn+i, ppns[i]);
+	    prefetched[vpn+i] = (i > 0);
+	}
+
+	nextSequentialVPN = vpn + count;
+	return true;
+    }
+
+    private void mapPage(int vpn, int ppn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	entry.ppn = ppn;
+	entry.used = false;
+	entry.dirty = false;
+	entry.valid = true;
+
+	if (sharedPages[vpn]) {
+	    VMKernel.invertedPageTable.mapShared(ppn, pid, vpn);
+	}
+	else {
+	    VMKernel.invertedPageTable.map(ppn, this, entry);
+	    VMKernel.replacementPolicy.pageLoaded(ppn);
+	}
+    }
+
+    /**
+     * Return how many of the pages following a faulting private page can be
+     * read in the same request: they must be non-resident and come from the
+     * same place, either the next slots of the swap file or the next pages of
+     * the same COFF section.
+     *
+     * @param	vpn	the faulting page.
+     * @param	window	the most pages to read ahead.
+     * @return	the number of pages after <i>vpn</i> to read.
+     */
+    private int countReadahead(int vpn, int window) {
+	int slot = VMKernel.swap.getSlot(pid, vpn);
+	CoffSection section = pageSections[vpn];
+	if (slot == -1 && section == null)
+	    return 0;
+
+	int count = 0;
+	while (count < window) {
+	    int next = vpn + count + 1;
+	    if (next >= numPages || pageTable[next].valid)
+		break;
+
+	    int nextSlot = VMKernel.swap.getSlot(pid, next);
+	    if (slot != -1 && nextSlot != slot + count + 1)
+		break;
+	    if (slot == -1 && (nextSlot != -1 || pageSections[next] != section))
+		break;
+
+	    count++;
+	}
+
+	return count;
+    }
+
+    /**
+     * Note the first reference to a page that was read ahead. Each hit widens
+     * the readahead window by a page.
+     */
+    private void checkReadahead(int vpn) {
+	if (prefetched[vpn]) {
+	    prefetched[vpn] = false;
+	    readaheadWindow = Math.min(readaheadWindow+1, maxReadahead);
+	}
+    }
+
+    /**
+     * Give up the frame holding a page so that it can be reused. Any TLB
+     * entry for the page is written back and invalidated, and the page is
+     * unmapped. The caller must hold <tt>VMKernel.pagingLock</tt>, and is
+     * responsible for saving the page and freeing the frame.
+     *
+     * @param	vpn	the resident page to evict.
+     * @return	<tt>true</tt> if the page was modified since it was last
+     *		loaded, and so must be written to swap.
+     */
+    boolean evictPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	// only the running process can have entries in the TLB
+	if (UserKernel.currentProcess() == this) {
+	    Processor processor = Machine.processor();
+
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+		    syncTLBEntry(i);
+		    processor.writeTLBEntry(i, invalidEntry);
+		}
+	    }
+	}
+
+	// a page read ahead but evicted unused means the window is too wide
+	if (prefetched[vpn]) {
+	    prefetched[vpn] = false;
+	    readaheadWindow = Math.max(readaheadWindow/2, 1);
+	}
+
+	VMKernel.invertedPageTable.unmap(pid, vpn);
+	entry.valid = false;
+
+	return entry.dirty;
+    }
+
+    /**
+     * Give this process a private copy of a page it shares copy-on-write,
+     * before the page is written. The contents are copied to a new frame,
+     * unless every other sharer has already made its own copy, in which case
+     * this process simply takes over the frame. The caller must hold
+     * <tt>VMKernel.pagingLock</tt>.
+     *
+     * @param	vpn	a resident copy-on-write page.
+     * @return	<tt>true</tt> if the page is now private and writable, or
+     *		<tt>false</tt> if no frame was available for the copy.
+     */
+    private boolean breakCopy(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	int oldPPN = entry.ppn;
+	InvertedPageTable.Frame frame =
+	    VMKernel.invertedPageTable.getFrame(oldPPN);
+
+	if (frame.copies.size() > 1) {
+	    // the shared frame must survive the allocation it may trigger
+	    VMKernel.invertedPageTable.pin(oldPPN);
+	    int ppn = UserKernel.pageAllocator.allocatePage(this);
+	    VMKernel.invertedPageTable.unpin(oldPPN);
+
+	    if (ppn == -1) {
+		Lib.debug(dbgVM, "\tno physical page to copy vpn " + vpn);
+		return false;
+	    }
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, oldPPN*pageSize, memory, ppn*pageSize,
+			     pageSize);
+
+	    // the copy differs from the swap slot the frame differed from
+	    boolean dirty = frame.dirty;
+	    releaseCopy(vpn);
+
+	    entry.ppn = ppn;
+	    entry.valid = true;
+	    entry.used = true;
+	    entry.dirty = dirty;
+	    VMKernel.invertedPageTable.map(ppn, this, entry);
+	    VMKernel.replacementPolicy.pageLoaded(ppn);
+
+	    Lib.debug(dbgVM, "\tcopy on write: vpn " + vpn + " ppn " + oldPPN
+		      + " -> " + ppn);
+	}
+	else {
+	    VMKernel.invertedPageTable.makePrivate(oldPPN, this, entry);
+
+	    Lib.debug(dbgVM, "\tcopy on write: vpn " + vpn + " keeps ppn "
+		      + oldPPN);
+	}
+
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+
+	if (UserKernel.currentProcess() == this) {
+	    Processor processor = Machine.processor();
+
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.vpn == vpn)
+		    processor.writeTLBEntry(i, entry);
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Stop sharing a copy-on-write page, leaving it non-resident in this
+     * process. If only one sharer remains, it becomes the frame's owner and
+     * may write the page without copying it. The caller must hold
+     * <tt>VMKernel.pagingLock</tt>.
+     *
+     * @param	vpn	a resident copy-on-write page.
+     */
+    private void releaseCopy(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	int ppn = entry.ppn;
+
+	VMKernel.invertedPageTable.unmap(pid, vpn);
+	entry.valid = false;
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+
+	InvertedPageTable.Frame frame = VMKernel.invertedPageTable.getFrame(ppn);
+	if (frame.copies != null && frame.copies.size() == 1)
+	    frame.copies.getFirst().takeCopy(vpn);
+    }
+
+    /**
+     * Become the owner of a copy-on-write page this process is the last to
+     * share.
+     */
+    private void takeCopy(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	VMKernel.invertedPageTable.makePrivate(entry.ppn, this, entry);
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+    }
+
+    /**
+     * Drop this process's translation for a copy-on-write page that is being
+     * evicted. The page becomes an ordinary private page again: its contents
+     * are in the swap slot it shares with the other sharers, or, if it was
+     * never modified, in the executable.
+     *
+     * @param	vpn	a resident copy-on-write page.
+     */
+    void dropCopy(int vpn) {
+	evictPage(vpn);
+	pageTable[vpn].readOnly = false;
+	copyOnWrite[vpn] = false;
+    }
+
+    /**
+     * Handle a read-only exception. A write to a copy-on-write page copies
+     * the page and retries the instruction; any other write to a read-only
+     * page kills the process.
+     *
+     * @param	vaddr	the virtual address that was written.
+     */
+    private void handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	VMKernel.pagingLock.acquire();
+
+	// the last other sharer may have handed the page over while we waited
+	boolean writable = vpn < pageTable.length &&
+	    (copyOnWrite[vpn] ? breakCopy(vpn) : !pageTable[vpn].readOnly);
+
+	VMKernel.pagingLock.release();
+
+	if (!writable) {
+	    Lib.debug(dbgVM, "\twrite to read-only address 0x"
+		      + Lib.toHexString(vaddr));
+	    terminate(-1, false);
+	}
+    }
+
+    /**
+     * Handle a TLB miss: wait while this process is suspended, fault the page
+     * in if necessary and load its translation into the TLB.
+     *
+     * @param	vaddr	the virtual address that missed.
+     */
+    private void handleTLBMiss(int vaddr) {
+	VMKernel.workingSets.checkSuspended(this);
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= pageTable.length) {
+	    Lib.debug(dbgVM, "\tbad virtual address 0x"
+		      + Lib.toHexString(vaddr));
+	    terminate(-1, false);
+	}
+
+	if (VMKernel.invertedPageTable.lookup(pid, vpn) == -1 &&
+	    !handlePageFault(vpn))
+	    terminate(-1, false);
+
+	checkReadahead(vpn);
+
+	Processor processor = Machine.processor();
+
+	// collect reference bits before choosing which TLB entry to replace
+	syncTLB();
+
+	int slot = -1;
+	for (int i=0; i<processor.getTLBSize() && slot == -1; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		slot = i;
+	}
+	if (slot == -1)
+	    slot = tlbPolicy.selectVictim();
+
+	processor.writeTLBEntry(slot, pageTable[vpn]);
+	tlbPolicy.entryLoaded(slot);
+    }
+
+    /**
+     * Copy the used and dirty bits the processor set on TLB entries back to
+     * this process's page table and the inverted page table.
+     */
+    private void syncTLB() {
+	for (int i=0; i<Machine.processor().getTLBSize(); i++)
+	    syncTLBEntry(i);
+    }
+
+    private void syncTLBEntry(int slot) {
+	TranslationEntry tlbEntry = Machine.processor().readTLBEntry(slot);
+	if (!tlbEntry.valid)
+	    return;
+
+	// shared frames have no owner entry in the inverted page table
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	if (entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+
+	VMKernel.invertedPageTable.harvest(pid, tlbEntry);
+    }
+
+    /**
+     * Drop this process's translation for a shared page that is being
+     * evicted.
+     *
+     * @param	vpn	a virtual page of a mapped file.
+     * @return	<tt>true</tt> if this process modified the page.
+     */
+    boolean dropPage(int vpn) {
+	return pageTable[vpn].valid && evictPage(vpn);
+    }
+
+    /**
+     * Return whether this process has used a shared page since the last
+     * call, and clear its used bit.
+     *
+     * @param	vpn	a virtual page of a mapped file or a copy-on-write
+     *			page.
+     * @return	<tt>true</tt> if the page was used.
+     */
+    boolean clearUsed(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	boolean used = entry.valid && entry.used;
+
+	entry.used = false;
+	return used;
+    }
+
+    /**
+     * Handle the mmap() system call. The file open on <i>fd</i> is mapped
+     * at <i>vaddr</i>, which must be page-aligned and lie above the program's
+     * stack and any other mapping. Pages are read in on first touch. Until
+     * <i>fd</i> is closed, read() and write() on it fail.
+     *
+     * @param	fd	the file descriptor of the file to map.
+     * @param	vaddr	the virtual address to map the file at.
+     * @return	the length of the file, or -1 on error.
+     */
+    private int handleMmap(int fd, int vaddr) {
+	if (fd < 0 || fd >= fileTable.length || fileTable[fd] == null ||
+	    fileTable[fd].getFileSystem() == null || mappings.containsKey(fd))
+	    return -1;
+
+	if (vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	OpenFile openFile = fileTable[fd];
+	int length = openFile.length();
+	if (length < 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	long end = (long) firstVPN + Lib.divRoundUp(length, pageSize);
+	if (firstVPN < numPages || end > maxMappedPages)
+	    return -1;
+
+	for (int vpn=firstVPN; vpn<end && vpn<pageFiles.length; vpn++) {
+	    if (pageFiles[vpn] != null)
+		return -1;
+	}
+
+	VMKernel.pagingLock.acquire();
+
+	PageCache.MappedFile file =
+	    VMKernel.pageCache.map(openFile.getName(), this, firstVPN);
+
+	if (file != null) {
+	    length = Math.min(length, file.getLength());
+	    Mapping mapping = new Mapping(file, firstVPN,
+					  Lib.divRoundUp(length, pageSize));
+
+	    growAddressSpace(firstVPN + mapping.numPages);
+	    for (int i=0; i<mapping.numPages; i++)
+		pageFiles[firstVPN+i] = mapping;
+
+	    mappings.put(fd, mapping);
+	}
+
+	VMKernel.pagingLock.release();
+
+	if (file == null)
+	    return -1;
+
+	Lib.debug(dbgVM, "\tmapped " + openFile.getName() + " at vpn "
+		  + firstVPN);
+	return length;
+    }
+
+    /**
+     * Drop every translation of a mapping, telling the file which pages this
+     * process modified, and remove this process from the file's mappers.
+     * The caller must hold <tt>VMKernel.pagingLock</tt>.
+     */
+    private void unmapFile(Mapping mapping) {
+	for (int i=0; i<mapping.numPages; i++) {
+	    int vpn = mapping.firstVPN + i;
+
+	    if (dropPage(vpn))
+		mapping.file.markDirty(i);
+
+	    pageFiles[vpn] = null;
+	    sharedPages[vpn] = false;
+	}
+
+	mapping.file.unmap(this, mapping.firstVPN);
+    }
+
+    /**
+     * Extend the page table and its companion arrays to cover at least
+     * <i>numVPNs</i> virtual pages. New pages are invalid.
+     */
+    private void growAddressSpace(int numVPNs) {
+	int oldLength = pageTable.length;
+	if (numVPNs <= oldLength)
+	    return;
+
+	pageTable = Arrays.copyOf(pageTable, numVPNs);
+	for (int vpn=oldLength; vpn<numVPNs; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
+	sharedPages = Arrays.copyOf(sharedPages, numVPNs);
+	pageSections = Arrays.copyOf(pageSections, numVPNs);
+	prefetched = Arrays.copyOf(prefetched, numVPNs);
+	pageFiles = Arrays.copyOf(pageFiles, numVPNs);
+	copyOnWrite = Arrays.copyOf(copyOnWrite, numVPNs);
+    }
+
+    /**
+     * Handle a syscall exception. Adds <tt>mmap()</tt> to the system calls
+     * of <tt>UserProcess</tt>, and makes close() unmap mapped file
+     * descriptors.
+     *
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+
+	case syscallClose:
+	    Mapping mapping = mappings.remove(a0);
+	    if (mapping != null) {
+		VMKernel.pagingLock.acquire();
+		unmapFile(mapping);
+		VMKernel.pagingLock.release();
+	    }
+	    break;
+	}
+
+	return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+
+    /**
+     * Refuse read(), write() and the other transfer system calls on a mapped
+     * file descriptor, whose file is accessed through memory instead.
+     *
+     * @param	fd	a file descriptor that is in use.
+     * @return	<tt>true</tt> if <i>fd</i> is not mapped.
+     */
+    protected boolean canTransfer(int fd) {
+	return !mappings.containsKey(fd);
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +851,69 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    handleReadOnly(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** The COFF section backing each virtual page, or <tt>null</tt>. */
+    protected CoffSection[] pageSections;
+
+    /**
+     * A file mapped into this process's address space by <tt>mmap()</tt>.
+     */
+    private static class Mapping {
+	Mapping(PageCache.MappedFile file, int firstVPN, int numPages) {
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	}
+
+	final PageCache.MappedFile file;
+	final int firstVPN;
+	final int numPages;
+    }
+
+    /** The mapping covering each virtual page, or <tt>null</tt>. */
+    private Mapping[] pageFiles;
+    /** Mappings by the file descriptor they were created from. */
+    private HashMap<Integer, Mapping> mappings =
+	new HashMap<Integer, Mapping>();
+
+    /** Resident pages shared copy-on-write with a parent or child. */
+    private boolean[] copyOnWrite;
+
+    /** Pages read ahead of a sequential fault and not yet referenced. */
+    private boolean[] prefetched;
+    /** The page a fault must hit to continue a sequential stream. */
+    private int nextSequentialVPN = -1;
+    /** How many pages the next sequential fault reads ahead. */
+    private int readaheadWindow = 2;
+    private int maxReadahead =
+	Config.getInteger("VMProcess.maxReadahead", 8);
+
+    /** Chooses which TLB entry a miss replaces. */
+    private TLBReplacement tlbPolicy;
+    /** The virtual page in each TLB entry at the last switch, or -1. */
+    private int[] savedTLB;
+
+    private static final TranslationEntry invalidEntry =
+	new TranslationEntry();
+
+    /** The highest virtual page a mapping may extend to. */
+    private static final int maxMappedPages = 0x10000;
+
+    private static final int syscallClose = 8, syscallMmap = 10;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
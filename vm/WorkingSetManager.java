@@ -0,0 +1,376 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Estimates the working set of each process and uses it to divide physical
+ * memory between processes, so that one process faulting heavily cannot take
+ * every frame from the others.
+ *
+ * <p>
+ * <tt>sample()</tt> runs on every timer interrupt. Each process has a virtual
+ * time, counted in samples taken while it was running. A sample moves the
+ * used bits of the running process's TLB and of every private page into the
+ * frame mirrors the replacement policy reads, and stamps each referenced
+ * frame with its owner's virtual time. A process's working set is the pages
+ * it referenced within the last <tt>VMKernel.workingSetWindow</tt> samples of
+ * its virtual time, whether they are still resident or have been evicted
+ * since.
+ *
+ * <p>
+ * A page-fault-frequency controller sets each process's resident quota once
+ * per window: more than <tt>VMKernel.pffUpper</tt> faults in the window grows
+ * the quota, and fewer than <tt>VMKernel.pffLower</tt> shrinks it to the
+ * working set. When memory runs out, frames of processes over quota that
+ * have left their working sets are evicted before the replacement policy is
+ * consulted.
+ *
+ * <p>
+ * When the working sets of the active processes no longer fit in memory,
+ * the process that has gone longest without running, typically one blocked
+ * in <tt>join()</tt> or on I/O, is suspended: its frames are the first to be
+ * evicted, and it waits at its next TLB miss. Suspended processes are resumed
+ * in order once their working sets fit again, or once the active processes
+ * have stopped running, as they may be waiting for a suspended one.
+ */
+public class WorkingSetManager {
+    /**
+     * Allocate a new working set manager.
+     *
+     * @param	table	the inverted page table to sample.
+     */
+    public WorkingSetManager(InvertedPageTable table) {
+	this.table = table;
+    }
+
+    /**
+     * Start tracking a process.
+     *
+     * @param	process	a process whose address space has just been created.
+     */
+    public void register(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	states.put(process.getPID(), new State(table.getNumFrames()));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop tracking a process that is exiting, and resume a suspended process
+     * if the memory it frees makes room.
+     *
+     * @param	process	the exiting process.
+     */
+    public void unregister(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	State state = states.remove(process.getPID());
+	if (state != null)
+	    suspended.remove(state);
+
+	balance();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Count a page fault against a process.
+     *
+     * @param	process	the process that faulted.
+     * @param	vpn	the page that faulted.
+     */
+    public void pageFault(VMProcess process, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	State state = states.get(process.getPID());
+	if (state != null) {
+	    state.faults++;
+	    state.evicted.remove(vpn);
+
+	    if (!state.suspended)
+		idleSamples = 0;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Note that a private page is about to be evicted, so that it still
+     * counts toward its owner's working set until it leaves the window.
+     *
+     * @param	frame	the frame being evicted.
+     */
+    public void pageEvicted(InvertedPageTable.Frame frame) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	State state = states.get(frame.pid);
+	if (state != null && frame.lastReference != -1 &&
+	    state.virtualTime - frame.lastReference < window)
+	    state.evicted.put(frame.vpn, frame.lastReference);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Block the current thread while its process is suspended. Called at the
+     * start of a TLB miss, with no locks held.
+     *
+     * @param	process	the current process.
+     */
+    public void checkSuspended(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	State state = states.get(process.getPID());
+	while (state != null && state.suspended) {
+	    Lib.debug(dbgVM, "\tpid " + process.getPID() + " suspended");
+	    state.resume.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Sample used bits and update working sets, quotas and suspensions.
+     * Called on every timer interrupt, with interrupts disabled.
+     */
+    public void sample() {
+	UserProcess current = UserKernel.currentProcess();
+	State running = (current == null) ? null : states.get(current.getPID());
+
+	samples++;
+	if (running != null && !running.suspended)
+	    idleSamples = 0;
+	else
+	    idleSamples++;
+
+	if (running != null) {
+	    running.virtualTime++;
+	    running.lastRun = samples;
+
+	    // the running process's references are still in the TLB
+	    Processor processor = Machine.processor();
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (!tlbEntry.valid || !tlbEntry.used)
+		    continue;
+
+		InvertedPageTable.Frame frame = table.getFrame(tlbEntry.ppn);
+		if (frame.owner == current && frame.vpn == tlbEntry.vpn) {
+		    table.harvest(frame.pid, tlbEntry);
+		    tlbEntry.used = false;
+		    processor.writeTLBEntry(i, tlbEntry);
+		}
+	    }
+	}
+
+	for (State state : states.values()) {
+	    state.residentPages = 0;
+
+	    // evicted pages drop out of the working set with the window
+	    for (Iterator<Long> i=state.evicted.values().iterator();
+		 i.hasNext(); ) {
+		if (state.virtualTime - i.next() >= window)
+		    i.remove();
+	    }
+	    state.workingSetSize = state.evicted.size();
+	}
+
+	sharedFrames = 0;
+	for (int ppn=0; ppn<table.getNumFrames(); ppn++) {
+	    InvertedPageTable.Frame frame = table.getFrame(ppn);
+	    if (frame.owner == null) {
+		if (frame.isPageable() || frame.sharers > 0)
+		    sharedFrames++;
+		continue;
+	    }
+
+	    State state = states.get(frame.pid);
+	    if (state == null)
+		continue;
+
+	    // hand the bit to the replacement policy's mirror, so the next
+	    // sample only sees new references
+	    if (frame.entry.used) {
+		frame.used = true;
+		frame.entry.used = false;
+		frame.lastReference = state.virtualTime;
+	    }
+	    else if (frame.lastReference == -1) {
+		frame.lastReference = state.virtualTime;
+	    }
+
+	    state.residentPages++;
+	    if (state.virtualTime - frame.lastReference < window)
+		state.workingSetSize++;
+	}
+
+	if (running != null && running.virtualTime % window == 0)
+	    adjustQuota(running);
+
+	balance();
+    }
+
+    /**
+     * Choose a frame to evict ahead of the replacement policy: any frame of a
+     * suspended process, or else the frame longest out of its owner's working
+     * set among processes over their quota.
+     *
+     * @return	an evictable frame, or -1 if no process has one to give up.
+     */
+    public int selectVictim() {
+	int victim = -1;
+	long oldest = -1;
+
+	for (int ppn=0; ppn<table.getNumFrames(); ppn++) {
+	    InvertedPageTable.Frame frame = table.getFrame(ppn);
+	    if (frame.owner == null || !frame.isEvictable() ||
+		frame.lastReference == -1)
+		continue;
+
+	    State state = states.get(frame.pid);
+	    if (state == null)
+		continue;
+
+	    if (state.suspended) {
+		state.residentPages--;
+		return ppn;
+	    }
+
+	    long age = state.virtualTime - frame.lastReference;
+	    if (state.residentPages > state.quota && age >= window &&
+		age > oldest) {
+		victim = ppn;
+		oldest = age;
+	    }
+	}
+
+	if (victim != -1)
+	    states.get(table.getFrame(victim).pid).residentPages--;
+
+	return victim;
+    }
+
+    /**
+     * Set a process's quota from its fault count over the last window.
+     */
+    private void adjustQuota(State state) {
+	if (state.faults > upperFaults) {
+	    state.quota = Math.min(state.quota + state.faults - upperFaults,
+				   table.getNumFrames());
+	}
+	else if (state.faults < lowerFaults) {
+	    state.quota = Math.max(state.workingSetSize, 1);
+	}
+
+	state.faults = 0;
+    }
+
+    /**
+     * Suspend the least recently run active process if the working sets of
+     * the active processes exceed memory, or resume the longest-suspended
+     * process if its working set fits. A suspended process is also resumed
+     * if no active process has run or faulted for a whole window, since the
+     * active processes may all be waiting for it.
+     */
+    private void balance() {
+	int available = table.getNumFrames() - sharedFrames;
+	int demand = 0, numActive = 0;
+	State idlest = null;
+	int idlestPID = -1;
+
+	for (Integer pid : states.keySet()) {
+	    State state = states.get(pid);
+	    if (state.suspended)
+		continue;
+
+	    demand += state.workingSetSize;
+	    numActive++;
+
+	    if (idlest == null || state.lastRun < idlest.lastRun) {
+		idlest = state;
+		idlestPID = pid;
+	    }
+	}
+
+	if (demand > available && numActive > 1) {
+	    idlest.suspended = true;
+	    idlest.suspendedDemand = idlest.workingSetSize;
+	    suspended.add(idlest);
+
+	    Lib.debug(dbgVM, "\tsuspending pid " + idlestPID + ": demand "
+		      + demand + " of " + available + " frames");
+	}
+	else if (!suspended.isEmpty()) {
+	    State next = suspended.getFirst();
+	    if (numActive == 0 || idleSamples >= window ||
+		demand + next.suspendedDemand <= available) {
+		suspended.removeFirst();
+		next.suspended = false;
+		next.lastRun = samples;
+		next.resume.V();
+		idleSamples = 0;
+
+		Lib.debug(dbgVM, "\tresuming a process: demand " + demand
+			  + " + " + next.suspendedDemand + " of " + available
+			  + " frames");
+	    }
+	}
+    }
+
+    /**
+     * What the manager knows about one process.
+     */
+    private static class State {
+	State(int quota) {
+	    this.quota = quota;
+	}
+
+	/** Samples taken while this process was running. */
+	long virtualTime = 0;
+	/** The sample at which this process last ran. */
+	long lastRun = 0;
+	/** Page faults since the quota was last adjusted. */
+	int faults = 0;
+	/** The most frames this process may keep when memory is short. */
+	int quota;
+	/** Resident private pages at the last sample. */
+	int residentPages = 0;
+	/** Pages referenced within the window, at the last sample. */
+	int workingSetSize = 0;
+	/** When each page evicted within the window was last referenced. */
+	HashMap<Integer, Long> evicted = new HashMap<Integer, Long>();
+
+	boolean suspended = false;
+	/** The working set size when this process was suspended. */
+	int suspendedDemand = 0;
+	/** Released when this process is resumed. */
+	Semaphore resume = new Semaphore(0);
+    }
+
+    private InvertedPageTable table;
+
+    /** Tracked processes by process ID. */
+    private HashMap<Integer, State> states = new HashMap<Integer, State>();
+    /** Suspended processes, longest suspended first. */
+    private LinkedList<State> suspended = new LinkedList<State>();
+    /** Frames shared between processes at the last sample. */
+    private int sharedFrames = 0;
+    /** The number of samples taken. */
+    private long samples = 0;
+    /** Samples since an active process last ran or faulted. */
+    private int idleSamples = 0;
+
+    private int window = Config.getInteger("VMKernel.workingSetWindow", 8);
+    private int upperFaults = Config.getInteger("VMKernel.pffUpper", 4);
+    private int lowerFaults = Config.getInteger("VMKernel.pffLower", 1);
+
+    private static final char dbgVM = 'v';
+}